@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+
+import javax.sound.sampled.AudioFormat;
+
+import benchmarks.Workload;
+
+/**
+ * The operations measured by the benchmarks in the benchmarks package, set
+ * up against the application classes.
+ */
+public class BenchmarkWorkloads {
+  // One capture buffer
+  private static int BUFFER_FRAMES = 512;
+
+  private static AudioFormat stereo(SampleFormat sampleFormat) {
+    return new CaptureFormat(48000, 2, sampleFormat).toAudioFormat();
+  }
+
+  private static float[] tone(int samples) {
+    var tone = new float[samples];
+    for (var i = 0; i < samples; ++i) {
+      tone[i] = (float) (0.5 * Math.sin(i * 0.03));
+    }
+    return tone;
+  }
+
+  private static void deleteRecursively(Path directory) throws IOException {
+    try (var files = Files.walk(directory)) {
+      for (var path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  public static Workload create(String name, String... parameters) throws Exception {
+    switch (name) {
+      // parameters: sample format
+      case "pcm.decode": {
+        var format = stereo(SampleFormat.valueOf(parameters[0]));
+        var samples = tone(BUFFER_FRAMES * 2);
+        var data = new byte[BUFFER_FRAMES * format.getFrameSize()];
+        PcmCodec.encode(format, samples, samples.length, data, 0);
+        return () -> {
+          PcmCodec.decode(format, data, 0, samples, samples.length);
+          return samples;
+        };
+      }
+      // parameters: sample format
+      case "pcm.encode": {
+        var format = stereo(SampleFormat.valueOf(parameters[0]));
+        var samples = tone(BUFFER_FRAMES * 2);
+        var data = new byte[BUFFER_FRAMES * format.getFrameSize()];
+        return () -> {
+          PcmCodec.encode(format, samples, samples.length, data, 0);
+          return data;
+        };
+      }
+      // One capture buffer through the tail detector, as the capture writer does
+      case "tail": {
+        var format = stereo(SampleFormat.PCM_24);
+        var samples = tone(BUFFER_FRAMES * 2);
+        var data = new byte[BUFFER_FRAMES * format.getFrameSize()];
+        PcmCodec.encode(format, samples, samples.length, data, 0);
+        var detector = new TailDetector(TailDetector.Options.defaults(), format);
+        detector.reset(Integer.MAX_VALUE);
+        detector.arm();
+        return () -> detector.process(data, 0, data.length);
+      }
+      // A 5 second stereo take written to disk, parameters: sample format
+      case "wav.write": {
+        var sampleFormat = SampleFormat.valueOf(parameters[0]);
+        var samples = tone(48000 * 5 * 2);
+        var path = Files.createTempFile("autosampler-benchmark", ".wav");
+        return new Workload() {
+          @Override
+          public Object run() throws Exception {
+            try (var writer = new WavWriter(path, 48000, 2, sampleFormat)) {
+              writer.metadata = new SampleMetadata(60, 100);
+              writer.write(samples, 0, samples.length);
+              return writer.frames();
+            }
+          }
+
+          @Override
+          public void close() throws IOException {
+            Files.deleteIfExists(path);
+          }
+        };
+      }
+      // Every note name in turn
+      case "midi.toMIDI": {
+        var names = new String[128];
+        for (var note = 0; note < names.length; ++note) {
+          names[note] = MIDIUtil.fromMidi(note);
+        }
+        var next = new int[1];
+        return () -> MIDIUtil.toMIDI(names[next[0]++ & 127]);
+      }
+      case "midi.fromMidi": {
+        var next = new int[1];
+        return () -> MIDIUtil.fromMidi(next[0]++ & 127);
+      }
+      // A take on fake devices with 100 ms sustain, parameters: speed of the
+      // fake line (0 for unlimited) and whether the take is processed and written
+      case "sampling": {
+        var format = stereo(SampleFormat.PCM_24);
+        var line = new FakeTargetDataLine(format, Double.parseDouble(parameters[0]));
+        var write = Boolean.parseBoolean(parameters[1]);
+        var session = CaptureSession.open(new FakeMidiDevice(line), line, format, new Sampler.Options(null, null));
+        var pipeline = new ProcessingPipeline(TakeProcessor.defaults(), new WaveEncoder(SampleFormat.PCM_24));
+        var directory = Files.createTempDirectory("autosampler-benchmark");
+        var next = new int[1];
+        return new Workload() {
+          @Override
+          public Object run() throws Exception {
+            var take = session.record(48 + next[0]++ % 24, 100, 100, 2000);
+            if (write) {
+              take.output = directory.resolve("sample_" + take.note + ".wav");
+              pipeline.submit(take);
+              pipeline.flush();
+            }
+            return take;
+          }
+
+          @Override
+          public void close() throws IOException {
+            pipeline.close();
+            session.close();
+            deleteRecursively(directory);
+          }
+        };
+      }
+      default:
+        throw new IllegalArgumentException("Unknown workload " + name);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+import java.util.List;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Transmitter;
+
+/**
+ * MIDI output that plays its notes on a {@link FakeTargetDataLine}. It has
+ * no clock, so the scheduler times note off against the capture frames.
+ */
+public class FakeMidiDevice implements MidiDevice {
+  private static MidiDevice.Info INFO = new MidiDevice.Info("Fake MIDI Device", "autosampler",
+      "Plays notes on a fake capture line", "1.0") {
+  };
+
+  private FakeTargetDataLine line;
+  private boolean open;
+
+  private Receiver receiver = new Receiver() {
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+      if (!(message instanceof ShortMessage)) {
+        return;
+      }
+      var shortMessage = (ShortMessage) message;
+      var command = shortMessage.getCommand();
+      if (command == ShortMessage.NOTE_ON && shortMessage.getData2() > 0) {
+        FakeMidiDevice.this.line.noteOn(shortMessage.getData1(), shortMessage.getData2());
+      } else if (command == ShortMessage.NOTE_OFF || command == ShortMessage.NOTE_ON) {
+        FakeMidiDevice.this.line.noteOff();
+      }
+    }
+
+    @Override
+    public void close() {
+    }
+  };
+
+  public FakeMidiDevice(FakeTargetDataLine _line) {
+    this.line = _line;
+  }
+
+  @Override
+  public MidiDevice.Info getDeviceInfo() {
+    return INFO;
+  }
+
+  @Override
+  public void open() {
+    this.open = true;
+  }
+
+  @Override
+  public void close() {
+    this.open = false;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return this.open;
+  }
+
+  @Override
+  public long getMicrosecondPosition() {
+    return -1;
+  }
+
+  @Override
+  public int getMaxReceivers() {
+    return -1;
+  }
+
+  @Override
+  public int getMaxTransmitters() {
+    return 0;
+  }
+
+  @Override
+  public Receiver getReceiver() {
+    return this.receiver;
+  }
+
+  @Override
+  public List<Receiver> getReceivers() {
+    return List.of(this.receiver);
+  }
+
+  @Override
+  public Transmitter getTransmitter() throws MidiUnavailableException {
+    throw new MidiUnavailableException("Fake MIDI device has no inputs");
+  }
+
+  @Override
+  public List<Transmitter> getTransmitters() {
+    return List.of();
+  }
+}
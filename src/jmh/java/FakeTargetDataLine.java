@@ -0,0 +1,220 @@
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Control;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineListener;
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * Capture line that renders a tone for the note {@link FakeMidiDevice} last
+ * turned on, so the whole sampling path runs without audio hardware.
+ *
+ * The tone rings out exponentially after note off, which is what ends a take
+ * in the tail detector. With a speed of 0 frames are produced as fast as
+ * they are read, otherwise at speed times real time.
+ */
+public class FakeTargetDataLine implements TargetDataLine {
+  // Time constant of the release (s)
+  private static double RELEASE_SECONDS = 0.05;
+
+  private AudioFormat format;
+  private double speed;
+  private int bufferSize;
+  private float[] samples = new float[0];
+  private boolean open;
+  private volatile boolean running;
+  private long startNanos;
+
+  // Frames handed out by read, only advanced by the reading thread
+  private volatile long position;
+
+  // Set from the MIDI side
+  private volatile double frequency;
+  private volatile double amplitude;
+  private volatile boolean released;
+  private double phase;
+  private double level;
+
+  public FakeTargetDataLine(AudioFormat _format, double _speed) {
+    this.format = _format;
+    this.speed = _speed;
+    this.bufferSize = (int) (_format.getFrameRate() / 10) * _format.getFrameSize();
+  }
+
+  void noteOn(int note, int velocity) {
+    this.frequency = MIDIUtil.toFrequency(note);
+    this.amplitude = 0.5 * velocity / 127.0;
+    this.released = false;
+  }
+
+  void noteOff() {
+    this.released = true;
+  }
+
+  // Frames the device has produced, read or not
+  private long producedFrames() {
+    if (this.speed <= 0) {
+      // Rendered on demand, nothing is ever waiting
+      return this.position;
+    }
+    var elapsed = System.nanoTime() - this.startNanos;
+    return (long) (elapsed * this.speed * this.format.getFrameRate() / 1e9);
+  }
+
+  @Override
+  public int read(byte[] data, int offset, int length) {
+    var frameSize = this.format.getFrameSize();
+    var frames = length / frameSize;
+    while (this.speed > 0 && this.running && this.producedFrames() < this.position + frames) {
+      LockSupport.parkNanos(100_000);
+    }
+    if (!this.running) {
+      return 0;
+    }
+
+    var channels = this.format.getChannels();
+    if (this.samples.length < frames * channels) {
+      this.samples = new float[frames * channels];
+    }
+    var step = 2 * Math.PI * this.frequency / this.format.getFrameRate();
+    var decay = Math.exp(-1 / (RELEASE_SECONDS * this.format.getFrameRate()));
+    for (var frame = 0; frame < frames; ++frame) {
+      this.level = this.released ? this.level * decay : this.amplitude;
+      var value = (float) (this.level * Math.sin(this.phase));
+      this.phase += step;
+      for (var channel = 0; channel < channels; ++channel) {
+        this.samples[frame * channels + channel] = value;
+      }
+    }
+    this.phase %= 2 * Math.PI;
+    PcmCodec.encode(this.format, this.samples, frames * channels, data, offset);
+    this.position += frames;
+    return frames * frameSize;
+  }
+
+  @Override
+  public void open(AudioFormat _format, int _bufferSize) {
+    this.format = _format;
+    this.bufferSize = _bufferSize;
+    this.open = true;
+  }
+
+  @Override
+  public void open(AudioFormat _format) {
+    this.format = _format;
+    this.open = true;
+  }
+
+  @Override
+  public void open() {
+    this.open = true;
+  }
+
+  @Override
+  public void close() {
+    this.running = false;
+    this.open = false;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return this.open;
+  }
+
+  @Override
+  public void start() {
+    // Carries on from where the previous start left off
+    var resumed = this.speed > 0 ? this.position * 1e9 / (this.format.getFrameRate() * this.speed) : 0;
+    this.startNanos = System.nanoTime() - (long) resumed;
+    this.running = true;
+  }
+
+  @Override
+  public void stop() {
+    this.running = false;
+  }
+
+  @Override
+  public boolean isRunning() {
+    return this.running;
+  }
+
+  @Override
+  public boolean isActive() {
+    return this.running;
+  }
+
+  @Override
+  public void drain() {
+  }
+
+  @Override
+  public void flush() {
+  }
+
+  @Override
+  public AudioFormat getFormat() {
+    return this.format;
+  }
+
+  @Override
+  public int getBufferSize() {
+    return this.bufferSize;
+  }
+
+  @Override
+  public int available() {
+    var waiting = (this.producedFrames() - this.position) * this.format.getFrameSize();
+    return (int) Math.max(0, Math.min(this.bufferSize, waiting));
+  }
+
+  @Override
+  public int getFramePosition() {
+    return (int) this.position;
+  }
+
+  @Override
+  public long getLongFramePosition() {
+    return this.position;
+  }
+
+  @Override
+  public long getMicrosecondPosition() {
+    return (long) (this.position * 1e6 / this.format.getFrameRate());
+  }
+
+  @Override
+  public float getLevel() {
+    return AudioSystem.NOT_SPECIFIED;
+  }
+
+  @Override
+  public Line.Info getLineInfo() {
+    return new Line.Info(TargetDataLine.class);
+  }
+
+  @Override
+  public Control[] getControls() {
+    return new Control[0];
+  }
+
+  @Override
+  public boolean isControlSupported(Control.Type control) {
+    return false;
+  }
+
+  @Override
+  public Control getControl(Control.Type control) {
+    throw new IllegalArgumentException("Fake line has no controls");
+  }
+
+  @Override
+  public void addLineListener(LineListener listener) {
+  }
+
+  @Override
+  public void removeLineListener(LineListener listener) {
+  }
+}
@@ -0,0 +1,52 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Note name conversions, run for every key of the piano and every change of
+ * the note fields in the UI.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MIDIUtilBenchmark {
+  private Workload toMIDI;
+  private Workload fromMidi;
+
+  @Setup
+  public void setup() throws Exception {
+    this.toMIDI = Workload.create("midi.toMIDI");
+    this.fromMidi = Workload.create("midi.fromMidi");
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    this.toMIDI.close();
+    this.fromMidi.close();
+  }
+
+  @Benchmark
+  public Object toMIDI() throws Exception {
+    return this.toMIDI.run();
+  }
+
+  @Benchmark
+  public Object fromMidi() throws Exception {
+    return this.fromMidi.run();
+  }
+}
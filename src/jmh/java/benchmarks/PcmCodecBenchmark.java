@@ -0,0 +1,56 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conversion of one capture buffer (512 stereo frames) between PCM bytes and
+ * float samples.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PcmCodecBenchmark {
+  @Param({ "PCM_16", "PCM_24", "PCM_32", "FLOAT_32" })
+  public String sampleFormat;
+
+  private Workload decode;
+  private Workload encode;
+
+  @Setup
+  public void setup() throws Exception {
+    this.decode = Workload.create("pcm.decode", this.sampleFormat);
+    this.encode = Workload.create("pcm.encode", this.sampleFormat);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    this.decode.close();
+    this.encode.close();
+  }
+
+  @Benchmark
+  public Object decode() throws Exception {
+    return this.decode.run();
+  }
+
+  @Benchmark
+  public Object encode() throws Exception {
+    return this.encode.run();
+  }
+}
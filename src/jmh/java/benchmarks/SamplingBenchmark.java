@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end sampling on fake devices: note on, 100 ms sustain, release until
+ * the tail detector ends the take, then optionally processing and writing
+ * the file. At speed 0 the fake line delivers audio as fast as it is read,
+ * so the result is the cost of the sampling path itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SamplingBenchmark {
+  // Times real time the fake line runs at, 0 for as fast as possible
+  @Param({ "0", "20" })
+  public String speed;
+
+  @Param({ "false", "true" })
+  public String write;
+
+  private Workload take;
+
+  @Setup
+  public void setup() throws Exception {
+    this.take = Workload.create("sampling", this.speed, this.write);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    this.take.close();
+  }
+
+  @Benchmark
+  public Object take() throws Exception {
+    return this.take.run();
+  }
+}
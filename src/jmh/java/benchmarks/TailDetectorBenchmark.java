@@ -0,0 +1,44 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Tail detection of one capture buffer (512 frames of 24-bit stereo), the
+ * work the capture writer does for every block while a take is running.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TailDetectorBenchmark {
+  private Workload process;
+
+  @Setup
+  public void setup() throws Exception {
+    this.process = Workload.create("tail");
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    this.process.close();
+  }
+
+  @Benchmark
+  public Object process() throws Exception {
+    return this.process.run();
+  }
+}
@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing a finished 5 second stereo take to disk, as the processing workers
+ * do for every take.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WavWriterBenchmark {
+  @Param({ "PCM_16", "PCM_24", "FLOAT_32" })
+  public String sampleFormat;
+
+  private Workload write;
+
+  @Setup
+  public void setup() throws Exception {
+    this.write = Workload.create("wav.write", this.sampleFormat);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    this.write.close();
+  }
+
+  @Benchmark
+  public Object write() throws Exception {
+    return this.write.run();
+  }
+}
@@ -0,0 +1,28 @@
+package benchmarks;
+
+import java.io.IOException;
+
+/**
+ * One benchmarked operation, set up by BenchmarkWorkloads.
+ *
+ * JMH only accepts benchmarks in a named package, and a named package cannot
+ * refer to the application's classes in the default package. The workloads
+ * are therefore written next to the application classes and reached through
+ * this interface, which is a single monomorphic call per operation.
+ */
+public interface Workload extends AutoCloseable {
+  Object run() throws Exception;
+
+  @Override
+  default void close() throws IOException {
+  }
+
+  /**
+   * Creates the named workload, see BenchmarkWorkloads for the names and
+   * their parameters.
+   */
+  static Workload create(String name, String... parameters) throws Exception {
+    var factory = Class.forName("BenchmarkWorkloads").getMethod("create", String.class, String[].class);
+    return (Workload) factory.invoke(null, name, parameters);
+  }
+}
@@ -0,0 +1,463 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Plays the takes of a library, for checking them from the piano.
+ *
+ * The start of every take is decoded ahead of time into a cache that is
+ * bounded by a memory budget and drops the takes played least recently. A
+ * click only hands a voice to the mixer thread, which writes short blocks
+ * into a line opened with a small buffer, so the take starts within a few
+ * milliseconds. Past its head a voice reads straight from the memory mapped
+ * file, whose pages are loaded in the background as soon as it starts.
+ */
+public class AuditionEngine implements AutoCloseable {
+  public static class Options {
+    // Start of every take that is decoded ahead of time (ms)
+    public int headMillis;
+
+    // Heap spent on decoded heads
+    public long cacheBytes;
+
+    // Buffer of the output line (ms), about the delay between click and sound
+    public int bufferMillis;
+
+    // Output device, null for the default one
+    public Mixer.Info device;
+
+    public Options(int headMillis, long cacheBytes, int bufferMillis, Mixer.Info device) {
+      this.headMillis = headMillis;
+      this.cacheBytes = cacheBytes;
+      this.bufferMillis = bufferMillis;
+      this.device = device;
+    }
+
+    public static Options defaults() {
+      return new Options(500, 64L << 20, 10, null);
+    }
+  }
+
+  // Frames mixed and written at a time
+  private static int BLOCK_FRAMES = 64;
+
+  // The oldest voice is cut when another one starts
+  private static int MAX_VOICES = 16;
+
+  // A take on disk
+  private static class Entry {
+    public Path path;
+    public int note;
+    public int velocity;
+
+    public Entry(Path _path, int _note, int _velocity) {
+      this.path = _path;
+      this.note = _note;
+      this.velocity = _velocity;
+    }
+  }
+
+  // Decoded start of a take, the file stays mapped for the rest
+  private static class Head {
+    public WavFile file;
+    public float[] samples;
+    public int frames;
+    public int totalFrames;
+
+    public Head(WavFile _file, float[] _samples, int _frames) {
+      this.file = _file;
+      this.samples = _samples;
+      this.frames = _frames;
+      this.totalFrames = _file.frames();
+    }
+  }
+
+  private static class Voice {
+    public Head head;
+    public int frame;
+
+    public Voice(Head _head) {
+      this.head = _head;
+    }
+  }
+
+  // The line of one library format and the thread that mixes into it
+  private class Output implements Runnable {
+    private SourceDataLine line;
+    private AudioFormat format;
+    private Thread thread;
+    private volatile boolean running = true;
+    private ConcurrentLinkedQueue<Voice> incoming = new ConcurrentLinkedQueue<>();
+
+    public Output(AudioFormat _format) throws Exception {
+      this.format = _format;
+      var options = AuditionEngine.this.options;
+      this.line = options.device != null ? AudioSystem.getSourceDataLine(_format, options.device)
+          : AudioSystem.getSourceDataLine(_format);
+      var bufferFrames = Math.max(2 * BLOCK_FRAMES, (int) (_format.getFrameRate() * options.bufferMillis / 1000));
+      this.line.open(_format, bufferFrames * _format.getFrameSize());
+      this.line.start();
+      this.thread = new Thread(this, "audition");
+      this.thread.setDaemon(true);
+      this.thread.setPriority(Thread.MAX_PRIORITY);
+      this.thread.start();
+    }
+
+    public void play(Head head) {
+      this.incoming.add(new Voice(head));
+      LockSupport.unpark(this.thread);
+    }
+
+    @Override
+    public void run() {
+      var channels = this.format.getChannels();
+      var mix = new float[BLOCK_FRAMES * channels];
+      var samples = new float[BLOCK_FRAMES * channels];
+      var bytes = new byte[BLOCK_FRAMES * this.format.getFrameSize()];
+      // Read from the mapped files past the heads, in their own formats (at most 32-bit)
+      var fileBytes = new byte[BLOCK_FRAMES * channels * 4];
+      var voices = new ArrayList<Voice>();
+      while (this.running) {
+        for (var voice = this.incoming.poll(); voice != null; voice = this.incoming.poll()) {
+          if (voices.size() == MAX_VOICES) {
+            voices.remove(0);
+          }
+          voices.add(voice);
+        }
+        if (voices.isEmpty()) {
+          LockSupport.park(this);
+          continue;
+        }
+
+        Arrays.fill(mix, 0);
+        for (var i = voices.size() - 1; i >= 0; --i) {
+          var voice = voices.get(i);
+          var head = voice.head;
+          for (var done = 0; done < BLOCK_FRAMES && voice.frame < head.totalFrames;) {
+            float[] source;
+            int offset;
+            int count;
+            if (voice.frame < head.frames) {
+              source = head.samples;
+              offset = voice.frame * channels;
+              count = Math.min(BLOCK_FRAMES - done, head.frames - voice.frame);
+            } else {
+              count = Math.min(BLOCK_FRAMES - done, head.totalFrames - voice.frame);
+              head.file.read(voice.frame, count, samples, fileBytes);
+              source = samples;
+              offset = 0;
+            }
+            for (var s = 0; s < count * channels; ++s) {
+              mix[done * channels + s] += source[offset + s];
+            }
+            done += count;
+            voice.frame += count;
+          }
+          if (voice.frame >= head.totalFrames) {
+            voices.remove(i);
+          }
+        }
+        PcmCodec.encode(this.format, mix, mix.length, bytes, 0);
+        // Blocks while the small line buffer is full, which paces the loop
+        this.line.write(bytes, 0, bytes.length);
+      }
+    }
+
+    public void close() {
+      this.running = false;
+      LockSupport.unpark(this.thread);
+      this.line.stop();
+      this.line.flush();
+      try {
+        this.thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      this.line.close();
+    }
+  }
+
+  private Options options;
+  private ExecutorService executor = Util.newTaskExecutor("audition-loader");
+
+  // Note -> takes ordered by velocity, replaced as a whole when a library is scanned
+  private volatile Map<Integer, List<Entry>> library = Map.of();
+  private volatile AudioFormat libraryFormat;
+  private AtomicInteger generation = new AtomicInteger();
+  private AtomicInteger roundRobin = new AtomicInteger();
+
+  // Guarded by itself, in order of last use
+  private LinkedHashMap<Path, Head> cache = new LinkedHashMap<>(16, 0.75f, true);
+  private long cachedBytes;
+
+  // Guarded by this
+  private Output output;
+
+  public AuditionEngine(Options _options) {
+    this.options = _options;
+  }
+
+  /**
+   * Indexes the WAV files of directory in the background and then decodes
+   * their heads until the cache budget is used up. Takes with a different
+   * sample rate or channel count than the first one found are skipped, FLAC
+   * takes are only counted and reported.
+   */
+  public void setLibrary(Path directory) {
+    var generation = this.generation.incrementAndGet();
+    this.executor.execute(() -> {
+      try {
+        this.scan(directory, generation);
+      } catch (IOException e) {
+        System.out.println("Could not read the takes in " + directory + ": " + e.getMessage());
+      }
+    });
+  }
+
+  private void scan(Path directory, int generation) throws IOException {
+    if (!Files.isDirectory(directory)) {
+      this.library = Map.of();
+      return;
+    }
+    List<Path> files;
+    try (var listing = Files.list(directory)) {
+      files = listing.sorted().collect(Collectors.toList());
+    }
+    var flac = files.stream().filter(path -> path.getFileName().toString().toLowerCase().endsWith(".flac")).count();
+    if (flac > 0) {
+      System.out.println(String.format("%d FLAC takes in %s cannot be auditioned, only WAV takes are", flac,
+          directory));
+    }
+    files = files.stream().filter(path -> path.getFileName().toString().toLowerCase().endsWith(".wav"))
+        .collect(Collectors.toList());
+    var library = new HashMap<Integer, List<Entry>>();
+    AudioFormat format = null;
+    for (var path : files) {
+      try (var file = WavFile.open(path, false)) {
+        var fileFormat = file.getFormat();
+        if (file.getRootNote() < 0 || file.getVelocity() < 0) {
+          continue;
+        }
+        if (format == null) {
+          format = fileFormat;
+        } else if (fileFormat.getSampleRate() != format.getSampleRate()
+            || fileFormat.getChannels() != format.getChannels()) {
+          continue;
+        }
+        library.computeIfAbsent(file.getRootNote(), note -> new ArrayList<>())
+            .add(new Entry(path, file.getRootNote(), file.getVelocity()));
+      } catch (IOException e) {
+        // Not one of ours, or still being written
+      }
+    }
+    for (var entries : library.values()) {
+      entries.sort(Comparator.comparingInt(entry -> entry.velocity));
+    }
+    if (generation != this.generation.get()) {
+      return;
+    }
+    synchronized (this.cache) {
+      for (var head : this.cache.values()) {
+        close(head);
+      }
+      this.cache.clear();
+      this.cachedBytes = 0;
+    }
+    this.library = library;
+    this.libraryFormat = format;
+    if (format != null) {
+      // Opening a line can take a while, better now than on the first click
+      try {
+        this.output(format);
+      } catch (Exception e) {
+        System.out.println("Could not open the audition output: " + e.getMessage());
+      }
+    }
+
+    // Fill the cache from the middle of the keyboard outwards, those get played most
+    var order = library.values().stream().flatMap(List::stream)
+        .sorted(Comparator.comparingInt(entry -> Math.abs(entry.note - 60))).collect(Collectors.toList());
+    for (var entry : order) {
+      if (generation != this.generation.get() || !this.load(entry, true)) {
+        break;
+      }
+    }
+  }
+
+  private static void close(Head head) {
+    try {
+      head.file.close();
+    } catch (IOException e) {
+      // Read only, nothing to lose
+    }
+  }
+
+  private long headBytes(AudioFormat format) {
+    return (long) (format.getFrameRate() * this.options.headMillis / 1000) * format.getChannels() * 4;
+  }
+
+  /**
+   * Decodes the head of a take into the cache. While preloading nothing is
+   * evicted, false means the budget is used up.
+   */
+  private boolean load(Entry entry, boolean preload) {
+    synchronized (this.cache) {
+      if (this.cache.containsKey(entry.path)) {
+        return true;
+      }
+      var budget = this.options.cacheBytes;
+      if (preload && this.libraryFormat != null && this.cachedBytes + this.headBytes(this.libraryFormat) > budget) {
+        return false;
+      }
+    }
+    Head head;
+    try {
+      var file = WavFile.open(entry.path, false);
+      var format = file.getFormat();
+      var frames = Math.min(file.frames(), (int) (format.getFrameRate() * this.options.headMillis / 1000));
+      var samples = new float[frames * format.getChannels()];
+      var bytes = new byte[Math.max(1, frames) * format.getFrameSize()];
+      file.read(0, frames, samples, bytes);
+      head = new Head(file, samples, frames);
+    } catch (IOException | RuntimeException e) {
+      System.out.println("Could not load " + entry.path.getFileName() + ": " + e.getMessage());
+      return true;
+    }
+    synchronized (this.cache) {
+      var previous = this.cache.put(entry.path, head);
+      if (previous != null) {
+        close(previous);
+        this.cachedBytes -= previous.samples.length * 4L;
+      }
+      this.cachedBytes += head.samples.length * 4L;
+      // Least recently played first
+      var iterator = this.cache.entrySet().iterator();
+      while (this.cachedBytes > this.options.cacheBytes && iterator.hasNext()) {
+        var evicted = iterator.next().getValue();
+        if (evicted == head) {
+          break;
+        }
+        iterator.remove();
+        close(evicted);
+        this.cachedBytes -= evicted.samples.length * 4L;
+      }
+    }
+    return true;
+  }
+
+  // Take of note closest to velocity from above, round robins take turns
+  private Entry choose(int note, int velocity) {
+    var entries = this.library.get(note);
+    if (entries == null || entries.isEmpty()) {
+      return null;
+    }
+    var layer = entries.get(entries.size() - 1).velocity;
+    for (var entry : entries) {
+      if (entry.velocity >= velocity) {
+        layer = entry.velocity;
+        break;
+      }
+    }
+    var candidates = new ArrayList<Entry>();
+    for (var entry : entries) {
+      if (entry.velocity == layer) {
+        candidates.add(entry);
+      }
+    }
+    return candidates.get(Math.floorMod(this.roundRobin.getAndIncrement(), candidates.size()));
+  }
+
+  /**
+   * Plays the take of note that best matches velocity. Returns immediately,
+   * a take whose head is not cached yet is loaded in the background first.
+   * Returns false if the library has no take of the note.
+   */
+  public boolean play(int note, int velocity) {
+    var entry = this.choose(note, velocity);
+    if (entry == null) {
+      return false;
+    }
+    Head head;
+    synchronized (this.cache) {
+      head = this.cache.get(entry.path);
+    }
+    if (head != null) {
+      this.start(head);
+    } else {
+      this.executor.execute(() -> {
+        this.load(entry, false);
+        Head loaded;
+        synchronized (this.cache) {
+          loaded = this.cache.get(entry.path);
+        }
+        if (loaded != null) {
+          this.start(loaded);
+        }
+      });
+    }
+    return true;
+  }
+
+  private void start(Head head) {
+    Output output;
+    try {
+      output = this.output(this.libraryFormat);
+    } catch (Exception e) {
+      System.out.println("Could not open the audition output: " + e.getMessage());
+      return;
+    }
+    output.play(head);
+    if (head.frames < head.totalFrames) {
+      this.executor.execute(head.file::prefetch);
+    }
+  }
+
+  // The line for the library's format, reopened when a library of another format is played
+  private synchronized Output output(AudioFormat libraryFormat) throws Exception {
+    var format = new AudioFormat(libraryFormat.getSampleRate(), 16, libraryFormat.getChannels(), true, false);
+    if (this.output != null && !this.output.format.matches(format)) {
+      this.output.close();
+      this.output = null;
+    }
+    if (this.output == null) {
+      this.output = new Output(format);
+    }
+    return this.output;
+  }
+
+  @Override
+  public void close() {
+    this.generation.incrementAndGet();
+    this.executor.shutdownNow();
+    synchronized (this) {
+      if (this.output != null) {
+        this.output.close();
+        this.output = null;
+      }
+    }
+    synchronized (this.cache) {
+      for (var head : this.cache.values()) {
+        close(head);
+      }
+      this.cache.clear();
+      this.cachedBytes = 0;
+    }
+  }
+}
@@ -1,7 +1,13 @@
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashSet;
-import java.util.Set;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sound.midi.MidiDevice;
 import javax.sound.sampled.Mixer;
@@ -9,7 +15,6 @@ import javax.sound.sampled.Mixer;
 public class AutoSampler {
   /**
    * TODO
-   * Velocity layers
    * Chord sampling
    * Sample intervals
    */
@@ -24,7 +29,14 @@ public class AutoSampler {
     // Interval to sample between the notes
     public int interval;
 
-    // Length of time to sample (ms)
+    // Velocity layers to record for every note
+    public int[] velocities = new int[] { 127 };
+
+    // Number of takes to record for every note and velocity
+    public int roundRobins = 1;
+
+    // Maximum length of a single sample (ms), takes usually end earlier once
+    // the release has decayed below the tail threshold
     public int sampleLength;
 
     // Length of time to hold the note down (ms)
@@ -42,8 +54,50 @@ public class AutoSampler {
     // MIDI Device
     public MidiDevice.Info midiDevice;
 
+    // When to consider a release finished
+    public TailDetector.Options tail = TailDetector.Options.defaults();
+
+    // Applied to every take in order before it is written
+    public List<TakeProcessor> processing = TakeProcessor.defaults();
+
+    // Format to record in, negotiated against what the audio device supports
+    public CaptureFormat captureFormat = CaptureFormat.defaults();
+
+    // Sample encoding of the written files
+    public SampleFormat outputFormat = SampleFormat.PCM_16;
+
+    // File type of the written takes, the naming convention's extension is replaced to match
+    public ContainerFormat container = ContainerFormat.WAV;
+
+    // Measure the MIDI to audio latency with a few probe notes before sampling
+    public boolean calibrateLatency = true;
+
+    // Receives which note is queued, recording or done, may be null
+    public SamplingActivity activity;
+
+    // Metering tap on the capture stream, may be null
+    public LevelMeter meter;
+
+    // Skip takes an earlier, interrupted run already finished (see SessionJournal)
+    public boolean resume;
+
+    // Render on a software synthesizer faster than real time instead of
+    // recording the MIDI and audio devices, null to record
+    public SynthSource.Options render;
+
+    // How often a take a processing stage rejected (see Take#retake) is recorded again
+    public int maxRetakes = 2;
+
     public static interface NamingConvention {
       String invoke(int note, int velocity);
+
+      // Round robins are numbered from 1 and inserted before the extension
+      default String invoke(int note, int velocity, int round) {
+        var name = this.invoke(note, velocity);
+        var extension = name.lastIndexOf('.');
+        var suffix = "_rr" + (round + 1);
+        return extension < 0 ? name + suffix : name.substring(0, extension) + suffix + name.substring(extension);
+      }
     }
 
     public Options(int startNote, int endNote, int interval, int sampleLength, int noteHoldDuration,
@@ -61,24 +115,259 @@ public class AutoSampler {
     }
   }
 
-  public static interface SampleHandler {
-    void invoke(int note, int velocity, int current, int total);
+  // Counts the finished takes of all instruments of a run together
+  private static class Progress {
+    private SessionEvents events;
+    private int total;
+    private long started = System.nanoTime();
+    private AtomicInteger completed = new AtomicInteger();
+
+    // Takes recorded in this run, skipped ones take no time and say nothing about the rate
+    private AtomicInteger recorded = new AtomicInteger();
+
+    public Progress(SessionEvents _events, int _total) {
+      this.events = _events;
+      this.total = _total;
+    }
+
+    // Called once a take's file is in place, or when an earlier run already wrote it
+    public void takeFinished(int instrument, int note, int velocity, int round, boolean skipped) {
+      var current = this.completed.incrementAndGet();
+      var recorded = skipped ? this.recorded.get() : this.recorded.incrementAndGet();
+      var elapsed = Duration.ofNanos(System.nanoTime() - this.started);
+      var remaining = recorded > 0 ? elapsed.multipliedBy(this.total - current).dividedBy(recorded) : Duration.ZERO;
+      this.events.publish(new SessionEvent.TakeFinished(instrument, note, velocity, round, current, this.total,
+          remaining, skipped));
+    }
+
+    public void finished(Exception failure) {
+      this.events.publish(new SessionEvent.Finished(Duration.ofNanos(System.nanoTime() - this.started),
+          failure != null ? failure.toString() : null));
+    }
+  }
+
+  // Publishes to events as it goes, the run ends with a Finished event either way
+  static void sample(Options options, SessionEvents events) throws Exception {
+    sample(options, SamplingPlan.compile(options), events);
+  }
+
+  static void sample(Options options, SamplingPlan plan, SessionEvents events) throws Exception {
+    var progress = new Progress(events, plan.size());
+    try {
+      sample(options, plan, Math.max(1, Runtime.getRuntime().availableProcessors() - 1), 0, progress);
+    } catch (Exception e) {
+      progress.finished(e);
+      throw e;
+    }
+    progress.finished(null);
+  }
+
+  /**
+   * Samples several instruments at the same time, each one with its own MIDI
+   * device, audio input, capture session and processing pipeline. Every
+   * instrument runs as a task on the given executor, a failing instrument
+   * does not stop the others. The events of each instrument carry its index
+   * in instruments.
+   */
+  static void sampleAll(List<Options> instruments, ExecutorService executor, SessionEvents events)
+      throws Exception {
+    var plans = new ArrayList<SamplingPlan>();
+    var total = 0;
+    for (var options : instruments) {
+      var plan = SamplingPlan.compile(options);
+      plans.add(plan);
+      total += plan.size();
+    }
+
+    var progress = new Progress(events, total);
+    var processingThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / instruments.size());
+    var tasks = new ArrayList<Future<?>>();
+    for (var i = 0; i < instruments.size(); ++i) {
+      var instrument = i;
+      var options = instruments.get(i);
+      var plan = plans.get(i);
+      tasks.add(executor.submit(() -> {
+        sample(options, plan, processingThreads, instrument, progress);
+        return null;
+      }));
+    }
+
+    Exception failure = null;
+    for (var task : tasks) {
+      try {
+        task.get();
+      } catch (ExecutionException e) {
+        var cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        if (failure == null) {
+          failure = cause;
+        } else {
+          failure.addSuppressed(cause);
+        }
+      }
+    }
+    progress.finished(failure);
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private static void sample(Options options, SamplingPlan plan, int processingThreads, int instrument,
+      Progress progress) throws Exception {
+    var samplerOptions = new Sampler.Options(options.midiDevice, options.audioDevice, options.tail);
+    samplerOptions.format = options.captureFormat;
+    // The levels of the events are read from the meter, never from the capture threads
+    var meter = options.meter != null ? options.meter : new LevelMeter();
+    samplerOptions.meter = meter;
+    var stats = samplerOptions.stats;
+    stats.publishTo(progress.events, instrument);
+    var sampler = new Sampler(samplerOptions);
+    var total = plan.size();
+    var closing = -1L;
+    var levels = new LevelPublisher(meter, progress.events, instrument);
+    // Closing the pipeline before the journal waits for the final take to be recorded
+    try (var journal = SessionJournal.open(options.outputDirectory,
+        options.captureFormat + "\t" + options.outputFormat + " " + options.container, options.resume);
+        var pipeline = new ProcessingPipeline(options.processing, options.container.encoder(options.outputFormat),
+            journal, take -> progress.takeFinished(instrument, take.note, take.velocity, take.round, false),
+            processingThreads, 8);
+        var session = open(options, sampler, meter, stats)) {
+      // Rendered takes have no latency to measure
+      var calibrated = !options.calibrateLatency || !(session instanceof CaptureSession);
+      var activity = options.activity;
+      if (activity != null) {
+        activity.queue(plan);
+      }
+      for (var index = 0; index < total; ++index) {
+        var note = plan.note(index);
+        var velocity = plan.velocity(index);
+        var output = output(options, plan, index);
+        if (!journal.isDone(output)) {
+          // Only calibrate when there is something left to record
+          if (!calibrated) {
+            var started = stats.start();
+            calibrate((CaptureSession) session, plan);
+            stats.end(SessionStats.Phase.CALIBRATE, started);
+            calibrated = true;
+          }
+          if (activity != null) {
+            activity.set(note, SamplingActivity.State.RECORDING);
+          }
+          progress.events.publish(new SessionEvent.TakeStarted(instrument, note, velocity, plan.round(index), 0));
+          var take = session.record(note, velocity, options.noteHoldDuration, options.sampleLength);
+          take.round = plan.round(index);
+          take.output = output;
+          take.lastAttempt = options.maxRetakes == 0;
+          submit(pipeline, take);
+        } else {
+          progress.takeFinished(instrument, note, velocity, plan.round(index), true);
+        }
+        // The plan keeps all takes of a note together
+        if (activity != null && (index + 1 == total || plan.note(index + 1) != note)) {
+          activity.set(note, SamplingActivity.State.DONE);
+        }
+      }
+
+      // Rejected takes are recorded again once the plan is through, the file of
+      // the last attempt stays if none of them passes
+      for (var attempt = 0; attempt < options.maxRetakes; ++attempt) {
+        pipeline.flush();
+        var retakes = pipeline.drainRetakes();
+        if (retakes.isEmpty()) {
+          break;
+        }
+        System.err.println(String.format("Recording %d rejected takes again", retakes.size()));
+        for (var rejected : retakes) {
+          progress.events.publish(new SessionEvent.TakeFailed(instrument, rejected, rejection(rejected), true));
+          if (activity != null) {
+            activity.set(rejected.note, SamplingActivity.State.RECORDING);
+          }
+          progress.events.publish(new SessionEvent.TakeStarted(instrument, rejected.note, rejected.velocity,
+              rejected.round, attempt + 1));
+          var take = session.record(rejected.note, rejected.velocity, options.noteHoldDuration,
+              options.sampleLength);
+          take.round = rejected.round;
+          take.output = rejected.output;
+          take.stats.attempt = attempt + 1;
+          take.lastAttempt = attempt + 1 == options.maxRetakes;
+          submit(pipeline, take);
+          if (activity != null) {
+            activity.set(rejected.note, SamplingActivity.State.DONE);
+          }
+        }
+      }
+      // Whatever the last attempts still got wrong stays as it is
+      pipeline.flush();
+      for (var rejected : pipeline.drainRetakes()) {
+        progress.events.publish(new SessionEvent.TakeFailed(instrument, rejected, rejection(rejected), false));
+      }
+      closing = stats.start();
+    } finally {
+      levels.close();
+      if (closing >= 0) {
+        stats.end(SessionStats.Phase.CLOSE, closing);
+      }
+      stats.finish();
+      report(stats, options.outputDirectory);
+    }
   }
 
-  // options, (note, velocity, current, total) -> void
-  static void sample(Options options, SampleHandler onSample) throws Exception {
-    var sampler = new Sampler(new Sampler.Options(options.midiDevice, options.audioDevice));
-    var toSample = new HashSet<Integer>();
-    for (var i = options.startNote; i <= options.endNote; i += options.interval) {
-      toSample.add(i);
-    }
-    toSample.add(options.endNote);
-    for (var note : toSample) {
-      var path = Paths.get(options.outputDirectory.toString(), options.namingConvention.invoke(note, 127));
-      sampler.sample(note, 127, options.noteHoldDuration, options.sampleLength, path);
-      var current = 1 + note - options.startNote;
-      var total = 1 + (options.endNote - options.startNote);
-      onSample.invoke(note, 127, current, total);
+  private static String rejection(Take take) {
+    return take.reason != null ? take.reason : "rejected by processing";
+  }
+
+  // File the take at index of the plan is written to
+  static Path output(Options options, SamplingPlan plan, int index) {
+    var note = plan.note(index);
+    var velocity = plan.velocity(index);
+    var name = plan.roundRobins() > 1
+        ? options.namingConvention.invoke(note, velocity, plan.round(index))
+        : options.namingConvention.invoke(note, velocity);
+    return Paths.get(options.outputDirectory.toString(), options.container.rename(name));
+  }
+
+  private static TakeSource open(Options options, Sampler sampler, LevelMeter meter, SessionStats stats)
+      throws Exception {
+    if (options.render != null) {
+      return SynthSource.open(options.render, options.captureFormat.toAudioFormat(), options.tail, meter, stats);
+    }
+    return sampler.open();
+  }
+
+  private static void submit(ProcessingPipeline pipeline, Take take) throws Exception {
+    take.stats.file = take.output.getFileName().toString();
+    take.stats.round = take.round;
+    var started = System.nanoTime();
+    pipeline.submit(take);
+    take.stats.end(SessionStats.Phase.QUEUE, started);
+  }
+
+  // Also written when sampling failed, that is when it is needed most
+  private static void report(SessionStats stats, Path directory) {
+    if (stats.getLineOverruns() > 0 || stats.getRingOverruns() > 0) {
+      System.err.println(String.format("Capture overran: line buffer full %d times, %d blocks dropped",
+          stats.getLineOverruns(), stats.getRingOverruns()));
+    }
+    try {
+      stats.writeReport(directory);
+    } catch (IOException e) {
+      System.err.println("Could not write the session report: " + e.getMessage());
+    }
+  }
+
+  // Probes the middle of the range at the loudest layer
+  private static void calibrate(CaptureSession session, SamplingPlan plan) throws Exception {
+    var probe = plan.size() / 2;
+    var velocity = 0;
+    for (var index = 0; index < plan.size(); ++index) {
+      velocity = Math.max(velocity, plan.velocity(index));
+    }
+    var result = LatencyCalibrator.calibrate(session, plan.note(probe), velocity, 3);
+    if (result == null) {
+      System.err.println("Latency calibration failed, no sound arrived for the probe notes");
+      return;
     }
+    var sampleRate = session.getFormat().getSampleRate();
+    System.err.println(String.format("Measured latency %.2f ms (%d frames, spread %d frames)",
+        result.latencyMillis(sampleRate), result.latencyFrames, result.maximumFrames - result.minimumFrames));
   }
 }
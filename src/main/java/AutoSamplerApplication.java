@@ -2,11 +2,17 @@ import java.io.File;
 import java.io.IOException;
 import java.time.Duration;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import javax.sound.midi.MidiDevice;
 import javax.sound.sampled.Mixer;
 import jfxtras.styles.jmetro.*;
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
@@ -15,6 +21,7 @@ import javafx.geometry.Orientation;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.ProgressBar;
@@ -29,13 +36,13 @@ import javafx.stage.DirectoryChooser;
 import javafx.stage.Stage;
 
 public class AutoSamplerApplication extends Application {
-  private Mixer.Info[] audioDevices;
-  private MidiDevice.Info[] midiDevices;
+  private DeviceRegistry devices = new DeviceRegistry();
 
   private ChoiceBox<Mixer.Info> audioDeviceChoice;
   private ChoiceBox<MidiDevice.Info> midiDeviceChoice;
   private File outputDirectory = Util.cwd().resolve("samples").toFile();
   private Piano piano;
+  private AuditionEngine audition = new AuditionEngine(AuditionEngine.Options.defaults());
   private TextField sampleLengthField;
   private TextField noteHoldLengthField;
   private Button openDirectoryButton;
@@ -44,22 +51,74 @@ public class AutoSamplerApplication extends Application {
   private TextField startingNoteField = new TextField("C3");
   private TextField endingNoteField = new TextField("C6");
   private TextField intervalField = new TextField("6");
+  private TextField velocitiesField = new TextField("127");
+  private TextField roundRobinsField = new TextField("1");
+  private Label planLabel = new Label();
+  private CheckBox normalizeCheck = new CheckBox("Normalize");
+  private CheckBox loopsCheck = new CheckBox("Find Loops");
+  private CheckBox pitchCheck = new CheckBox("Check Pitch");
+  private CheckBox resumeCheck = new CheckBox("Resume");
+  private ChoiceBox<Integer> sampleRateChoice = new ChoiceBox<>();
+  private ChoiceBox<Integer> channelsChoice = new ChoiceBox<>();
+  private ChoiceBox<SampleFormat> captureFormatChoice = new ChoiceBox<>();
+  private boolean updatingFormats;
+  private ChoiceBox<SampleFormat> outputFormatChoice = new ChoiceBox<>();
+  private ChoiceBox<ContainerFormat> containerChoice = new ChoiceBox<>();
 
   private static String VERSION = "0.0.1";
 
+  // How often devices are rescanned to pick up hot-plugged interfaces
+  private static int DEVICE_RESCAN_SECONDS = 5;
+
+  private ExecutorService executor = Util.newTaskExecutor("sampling");
+
+  private SamplingActivity activity = new SamplingActivity();
+  private long shownActivity = -1;
+  private LevelMeter meter = new LevelMeter();
+  private LevelMeterView levelView;
+
+  // Polls the running session once per frame, the sampling threads never
+  // post anything to the FX thread for these
+  private AnimationTimer frameTimer = new AnimationTimer() {
+    @Override
+    public void handle(long now) {
+      showActivity();
+      levelView.update(now);
+    }
+  };
+
   static void run(String[] args) {
     launch(args);
   }
 
   private AutoSampler.Options getOptionsFromState(boolean optional) {
     try {
-      return new AutoSampler.Options(MIDIUtil.toMIDI(this.startingNoteField.getText()),
+      var options = new AutoSampler.Options(MIDIUtil.toMIDI(this.startingNoteField.getText()),
           MIDIUtil.toMIDI(this.endingNoteField.getText()),
           Integer.parseInt(this.intervalField.getText()),
           Integer.parseInt(this.sampleLengthField.getText()),
           Integer.parseInt(this.noteHoldLengthField.getText()), this.outputDirectory.toPath(),
           (note, velocity) -> "sample_" + note + "_" + velocity + ".wav", this.audioDeviceChoice.getValue(),
           this.midiDeviceChoice.getValue());
+      options.velocities = SamplingPlan.parseVelocities(this.velocitiesField.getText());
+      options.roundRobins = Integer.parseInt(this.roundRobinsField.getText());
+      if (this.normalizeCheck.isSelected()) {
+        options.processing.add(TakeProcessor.normalize(-1));
+      }
+      if (this.loopsCheck.isSelected()) {
+        options.processing.add(LoopFinder.stage(LoopFinder.Options.defaults()));
+      }
+      if (this.pitchCheck.isSelected()) {
+        options.processing.add(PitchDetector.stage(PitchDetector.Options.defaults()));
+      }
+      options.captureFormat = new CaptureFormat(this.sampleRateChoice.getValue(), this.channelsChoice.getValue(),
+          this.captureFormatChoice.getValue());
+      if (this.devices.current().isSynthesizer(options.midiDevice)) {
+        options.render = new SynthSource.Options(options.midiDevice);
+      }
+      options.outputFormat = this.outputFormatChoice.getValue();
+      options.container = this.containerChoice.getValue();
+      return options;
     } catch (Exception e) {
       if (optional) {
         return null;
@@ -71,47 +130,222 @@ public class AutoSamplerApplication extends Application {
   private void updateIOState() {
     this.openDirectoryButton.setDisable(!this.outputDirectory.exists());
     this.directoryChooserTextField.setText(this.outputDirectory.getPath().toString());
+    // Picks up the takes of the directory, and of a run that just finished
+    this.audition.setLibrary(this.outputDirectory.toPath());
   }
 
-  private void updatePianoState() {
+  private SamplingPlan getPlanFromState() {
     var options = this.getOptionsFromState(true);
-    if (options != null) {
-      if (options.interval <= 0) {
-        return;
+    if (options == null) {
+      return null;
+    }
+    try {
+      return SamplingPlan.compile(options);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private void updatePianoState() {
+    var plan = this.getPlanFromState();
+    if (plan == null) {
+      this.planLabel.setText("Invalid sampling options");
+      return;
+    }
+    this.piano.reset();
+    for (var code : plan.notes()) {
+      this.piano.setState(code, Piano.State.HIGHLIGHTED);
+    }
+    this.piano.flush();
+    var maxLength = this.getOptionsFromState(false).sampleLength;
+    this.planLabel.setText(String.format("%d takes, at most %s", plan.size(),
+        Util.formatDuration(plan.maximumDuration(maxLength))));
+  }
+
+  private void showActivity() {
+    var version = this.activity.version();
+    if (version == this.shownActivity) {
+      return;
+    }
+    this.shownActivity = version;
+    for (var note = 0; note < 128; ++note) {
+      switch (this.activity.get(note)) {
+        case QUEUED:
+          this.piano.setState(note, Piano.State.QUEUED);
+          break;
+        case RECORDING:
+          this.piano.setState(note, Piano.State.RECORDING);
+          break;
+        case DONE:
+          this.piano.setState(note, Piano.State.DONE);
+          break;
+        default:
+          break;
       }
-      this.piano.clear();
-      for (var code = options.startNote; code <= options.endNote; code += options.interval) {
-        this.piano.highlight(code);
+    }
+    this.piano.flush();
+  }
+
+  // Replaces the choice box items, keeping the selected devices if they are still there
+  private void updateDeviceChoices(DeviceRegistry.Snapshot snapshot) {
+    // Software synthesizers come after the hardware and are rendered offline
+    replaceItems(this.midiDeviceChoice, Stream.concat(Arrays.stream(snapshot.midiDevices()),
+        Arrays.stream(snapshot.synthesizers())).toArray(MidiDevice.Info[]::new));
+    replaceItems(this.audioDeviceChoice, snapshot.audioDevices());
+    updateFormatChoices();
+  }
+
+  /**
+   * Offers only the capture formats the selected input accepts, as probed by
+   * the registry: the rates it has, the channel counts at the chosen rate and
+   * the sample formats at both. Everything is offered while the input is
+   * unknown, the format is negotiated again when the line opens anyway.
+   */
+  private void updateFormatChoices() {
+    // Changing one choice box fires the listeners of the others
+    if (this.updatingFormats) {
+      return;
+    }
+    this.updatingFormats = true;
+    try {
+      this.filterFormatChoices();
+    } finally {
+      this.updatingFormats = false;
+    }
+  }
+
+  private void filterFormatChoices() {
+    var formats = this.devices.current().formats(this.audioDeviceChoice.getValue());
+    if (formats.isEmpty()) {
+      setChoices(this.sampleRateChoice, Arrays.stream(SoundUtil.SAMPLE_RATES).boxed().collect(Collectors.toList()),
+          44100);
+      setChoices(this.channelsChoice, List.of(1, 2), 1);
+      setChoices(this.captureFormatChoice, Arrays.asList(SampleFormat.values()), SampleFormat.PCM_16);
+      return;
+    }
+    setChoices(this.sampleRateChoice, formats.stream().map(format -> format.sampleRate).distinct().sorted()
+        .collect(Collectors.toList()), 44100);
+    var rate = this.sampleRateChoice.getValue();
+    setChoices(this.channelsChoice, formats.stream().filter(format -> format.sampleRate == rate)
+        .map(format -> format.channels).distinct().sorted().collect(Collectors.toList()), 1);
+    var channels = this.channelsChoice.getValue();
+    setChoices(this.captureFormatChoice, formats.stream()
+        .filter(format -> format.sampleRate == rate && format.channels == channels)
+        .map(format -> format.sampleFormat).distinct().sorted().collect(Collectors.toList()), SampleFormat.PCM_16);
+  }
+
+  // Keeps the selection if it is still offered, otherwise picks fallback or the first item
+  private static <T> void setChoices(ChoiceBox<T> choice, List<T> items, T fallback) {
+    var selected = choice.getValue();
+    if (!choice.getItems().equals(items)) {
+      choice.getItems().setAll(items);
+    }
+    var value = items.contains(selected) ? selected : items.contains(fallback) ? fallback
+        : items.isEmpty() ? null : items.get(0);
+    if (value != choice.getValue()) {
+      choice.setValue(value);
+    }
+  }
+
+  private static <T> void replaceItems(ChoiceBox<T> choice, T[] items) {
+    // Providers may hand out new Info objects on every scan, so match by name
+    var selected = choice.getValue();
+    choice.getItems().setAll(items);
+    T value = items.length > 0 ? items[0] : null;
+    for (var item : items) {
+      if (selected != null && item.toString().equals(selected.toString())) {
+        value = item;
       }
-      this.piano.highlight(options.endNote);
+    }
+    choice.setValue(value);
+  }
+
+  /**
+   * Shows the events of a run on the FX thread. Only one runLater is in
+   * flight at a time, whatever arrives meanwhile waits in (and is coalesced
+   * by) the publisher instead of flooding the FX queue.
+   */
+  private class SessionView implements Flow.Subscriber<SessionEvent> {
+    private Button sampleButton;
+    private ProgressBar progress;
+    private Flow.Subscription subscription;
+
+    public SessionView(Button _sampleButton, ProgressBar _progress) {
+      this.sampleButton = _sampleButton;
+      this.progress = _progress;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription _subscription) {
+      this.subscription = _subscription;
+      this.subscription.request(1);
+    }
+
+    @Override
+    public void onNext(SessionEvent event) {
+      Platform.runLater(() -> {
+        this.show(event);
+        this.subscription.request(1);
+      });
+    }
+
+    private void show(SessionEvent event) {
+      if (event instanceof SessionEvent.TakeFinished) {
+        var take = (SessionEvent.TakeFinished) event;
+        System.out.println(String.format(" Sampled note %d with velocity %d (%d/%d, %s remaining)", take.note,
+            take.velocity, take.current, take.total, Util.formatDuration(take.remaining)));
+        this.progress.setProgress((double) take.current / take.total);
+      } else if (event instanceof SessionEvent.TakeFailed) {
+        var take = (SessionEvent.TakeFailed) event;
+        System.out.println(String.format(" Take of note %d with velocity %d rejected, %s%s", take.note,
+            take.velocity, take.reason, take.retaken ? ", recording it again" : ""));
+      } else if (event instanceof SessionEvent.Finished) {
+        var finished = (SessionEvent.Finished) event;
+        if (finished.error == null) {
+          System.out.println("Finished");
+        } else {
+          planLabel.setText("Sampling failed: " + finished.error);
+        }
+      }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      this.onComplete();
+    }
+
+    @Override
+    public void onComplete() {
+      Platform.runLater(() -> {
+        this.sampleButton.setDisable(false);
+        updateIOState();
+      });
     }
   }
 
+  @Override
+  public void stop() {
+    this.devices.close();
+    this.audition.close();
+  }
+
   @Override
   public void start(Stage primaryStage) throws Exception {
     primaryStage.setTitle("Auto Sampler " + VERSION);
     primaryStage.getIcons()
         .add(new Image(AutoSamplerApplication.class.getResourceAsStream("/icon128.png")));
 
-    this.audioDevices = SoundUtil.audioInputs();
-    this.midiDevices = SoundUtil.midiOutputs();
-
-    Arrays.sort(this.audioDevices, (a, b) -> a.getName().compareTo(b.getName()));
-    Arrays.sort(this.midiDevices, (a, b) -> a.getName().compareTo(b.getName()));
-
-    // Create the midi device choice box
+    // Device choice boxes, filled in by the registry once its first scan is done
     this.midiDeviceChoice = new ChoiceBox<>();
-    this.midiDeviceChoice.setValue(this.midiDevices[0]);
-    Stream.of(this.midiDevices).forEach(device -> {
-      this.midiDeviceChoice.getItems().add(device);
-    });
-
-    // Create the audio device choicebox
     this.audioDeviceChoice = new ChoiceBox<>();
-    this.audioDeviceChoice.setValue(this.audioDevices[0]);
-    Stream.of(this.audioDevices).forEach(device -> {
-      this.audioDeviceChoice.getItems().add(device);
+    var rescanButton = new Button("Rescan");
+    rescanButton.setOnAction(e -> {
+      rescanButton.setDisable(true);
+      this.devices.refresh().whenComplete((snapshot, error) -> Platform.runLater(() -> rescanButton.setDisable(false)));
     });
+    this.devices.addListener(snapshot -> Platform.runLater(() -> updateDeviceChoices(snapshot)));
+    this.devices.refresh();
+    this.devices.scheduleRefresh(DEVICE_RESCAN_SECONDS, TimeUnit.SECONDS);
 
     // Choice of output directory
     var directoryChooser = new DirectoryChooser();
@@ -141,58 +375,67 @@ public class AutoSamplerApplication extends Application {
     var progress = new ProgressBar(0);
 
     sampleButton.setOnAction(_e -> {
-      progress.setProgress(0);
-
-      String[] entries = this.outputDirectory.list();
-      for (String s : entries) {
-        File currentFile = new File(this.outputDirectory.getPath(), s);
-        currentFile.delete();
+      AutoSampler.Options options;
+      SamplingPlan plan;
+      try {
+        options = getOptionsFromState(false);
+        plan = SamplingPlan.compile(options);
+      } catch (IllegalArgumentException e) {
+        this.planLabel.setText("Cannot start sampling: " + e.getMessage());
+        return;
       }
-      this.outputDirectory.delete();
-      this.outputDirectory.mkdirs();
-      System.out.println(this.outputDirectory.toPath().toString());
-      System.out.println("Starting sampling");
+      options.activity = this.activity;
+      options.meter = this.meter;
+      options.resume = this.resumeCheck.isSelected();
+      progress.setProgress(0);
+      this.activity.reset();
 
       sampleButton.setDisable(true);
-      var task = new Thread(() -> {
+      this.executor.submit(() -> {
+        var events = new SessionEvents(this.executor);
+        events.subscribe(new SessionView(sampleButton, progress));
+        try {
+          // A clean run keeps the old samples, renamed out of the way, all of it
+          // off the FX thread however many files there are
+          OutputDirectory.prepare(options, plan, true);
+          events.subscribe(EventLog.open(options.outputDirectory, 0));
+        } catch (IOException e) {
+          events.publish(new SessionEvent.Finished(Duration.ZERO, e.getMessage()));
+          events.close();
+          return;
+        }
+        System.out.println(options.outputDirectory);
+        System.out.println("Starting sampling");
         try {
-          AutoSampler.sample(getOptionsFromState(false), (note, velocity, current, total) -> {
-            Platform.runLater(() -> {
-              var message = String.format(" Sampling note %d with velocity %d", note, velocity);
-              System.out.println(message);
-            });
-          });
+          AutoSampler.sample(options, plan, events);
         } catch (Exception e) {
-          Platform.runLater(() -> {
-            e.printStackTrace();
-          });
+          // Already reported by the Finished event
+        } finally {
+          events.close();
         }
-        Platform.runLater(() -> {
-          sampleButton.setDisable(false);
-          System.out.println("Finished");
-          updateIOState();
-        });
       });
-
-      task.start();
     });
 
     // IO options
-    var ioOptionsBox = new HBox(5, this.midiDeviceChoice, this.audioDeviceChoice, directoryChooserTextField,
+    var ioOptionsBox = new HBox(5, this.midiDeviceChoice, this.audioDeviceChoice, rescanButton,
+        directoryChooserTextField,
         directoryChooserButton, openDirectoryButton);
     ioOptionsBox.getStyleClass().add(JMetroStyleClass.BACKGROUND);
     HBox.setHgrow(directoryChooserTextField, Priority.ALWAYS);
 
     // Timing options and start
     this.noteHoldLengthField = new TextField("1000");
-    this.sampleLengthField = new TextField("1000");
+    this.sampleLengthField = new TextField("10000");
 
     var sustainLabel = new Label("Note Sustain");
+    var sampleLengthLabel = new Label("Max Length");
 
     var startingNoteLabel = new Label("Start");
     var endingNoteLabel = new Label("End");
 
     var intervalLabel = new Label("Interval");
+    var velocitiesLabel = new Label("Velocities");
+    var roundRobinsLabel = new Label("Round Robins");
 
     ChangeListener<String> pianoParamsChange = (observable, old, newValue) -> {
       updatePianoState();
@@ -207,32 +450,76 @@ public class AutoSamplerApplication extends Application {
     this.intervalField.textProperty().addListener(pianoParamsChange);
     this.endingNoteField.textProperty().addListener(pianoParamsChange);
     this.startingNoteField.textProperty().addListener(pianoParamsChange);
+    this.velocitiesField.textProperty().addListener(pianoParamsChange);
+    this.roundRobinsField.textProperty().addListener(pianoParamsChange);
+    this.sampleLengthField.textProperty().addListener(pianoParamsChange);
+    this.velocitiesField.setMaxWidth(160);
+    this.roundRobinsField.setMaxWidth(60);
 
     var controlsBox = new HBox(5, startingNoteLabel, this.startingNoteField, endingNoteLabel, this.endingNoteField,
         intervalLabel, this.intervalField,
         new Separator(Orientation.VERTICAL),
         sustainLabel, this.noteHoldLengthField,
+        sampleLengthLabel, this.sampleLengthField,
         new Separator(Orientation.VERTICAL),
         sampleButton);
     controlsBox.setAlignment(Pos.CENTER_LEFT);
 
+    // Capture and output formats
+    updateFormatChoices();
+    this.audioDeviceChoice.valueProperty().addListener((observable, old, device) -> updateFormatChoices());
+    this.sampleRateChoice.valueProperty().addListener((observable, old, rate) -> updateFormatChoices());
+    this.channelsChoice.valueProperty().addListener((observable, old, channels) -> updateFormatChoices());
+    this.outputFormatChoice.getItems().addAll(SampleFormat.PCM_16, SampleFormat.PCM_24, SampleFormat.FLOAT_32);
+    this.outputFormatChoice.setValue(SampleFormat.PCM_16);
+    this.containerChoice.getItems().addAll(ContainerFormat.values());
+    this.containerChoice.setValue(ContainerFormat.WAV);
+    // FLAC only stores integer samples
+    this.containerChoice.valueProperty().addListener((observable, old, container) -> {
+      var selected = this.outputFormatChoice.getValue();
+      if (container == ContainerFormat.FLAC) {
+        this.outputFormatChoice.getItems().setAll(SampleFormat.PCM_16, SampleFormat.PCM_24);
+      } else {
+        this.outputFormatChoice.getItems().setAll(SampleFormat.PCM_16, SampleFormat.PCM_24, SampleFormat.FLOAT_32);
+      }
+      this.outputFormatChoice.setValue(this.outputFormatChoice.getItems().contains(selected) ? selected
+          : SampleFormat.PCM_24);
+    });
+
+    var formatBox = new HBox(5, new Label("Sample Rate"), this.sampleRateChoice, new Label("Channels"),
+        this.channelsChoice, new Label("Capture"), this.captureFormatChoice,
+        new Separator(Orientation.VERTICAL),
+        new Label("Output"), this.containerChoice, this.outputFormatChoice);
+    formatBox.setAlignment(Pos.CENTER_LEFT);
+
+    var layersBox = new HBox(5, velocitiesLabel, this.velocitiesField, roundRobinsLabel, this.roundRobinsField,
+        new Separator(Orientation.VERTICAL),
+        this.normalizeCheck, this.loopsCheck, this.pitchCheck, this.resumeCheck,
+        new Separator(Orientation.VERTICAL),
+        this.planLabel, progress);
+    layersBox.setAlignment(Pos.CENTER_LEFT);
+
     //
     var octaves = 7;
     var width = Piano.width(octaves);
     var spacing = 5;
     var pianoHeight = Piano.height();
-    var height = 100 + pianoHeight;
+    var meterHeight = 48;
+    var height = 185 + pianoHeight + meterHeight + 10;
     var padding = 10;
 
     // Layout
-    var utils = new VBox(10, ioOptionsBox, new Separator(Orientation.HORIZONTAL), controlsBox,
-        new Separator(Orientation.HORIZONTAL));
+    this.levelView = new LevelMeterView(this.meter, width - padding * 2, meterHeight);
+    var utils = new VBox(10, ioOptionsBox, new Separator(Orientation.HORIZONTAL), controlsBox, layersBox,
+        formatBox, this.levelView.getCanvas(), new Separator(Orientation.HORIZONTAL));
     utils.setPadding(new Insets(padding, padding, padding, padding));
     utils.maxHeight(300);
 
     // Piano
     this.piano = new Piano(width, pianoHeight, 7);
     this.piano.draw();
+    // Clicking a key plays its take, softer towards the back of the key
+    this.piano.setOnKeyPressed((note, depth) -> this.audition.play(note, 1 + (int) Math.round(depth * 126)));
     var box = new VBox(this.piano.getCanvas(), new Separator(Orientation.HORIZONTAL), utils);
     box.getStyleClass().add(JMetroStyleClass.BACKGROUND);
 
@@ -246,5 +533,6 @@ public class AutoSamplerApplication extends Application {
     primaryStage.setResizable(false);
     primaryStage.setScene(scene);
     primaryStage.show();
+    this.frameTimer.start();
   }
 }
@@ -0,0 +1,52 @@
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Format to record from the audio interface in.
+ */
+public class CaptureFormat {
+  public int sampleRate;
+  public int channels;
+  public SampleFormat sampleFormat;
+
+  public CaptureFormat(int _sampleRate, int _channels, SampleFormat _sampleFormat) {
+    this.sampleRate = _sampleRate;
+    this.channels = _channels;
+    this.sampleFormat = _sampleFormat;
+  }
+
+  public static CaptureFormat defaults() {
+    return new CaptureFormat(44100, 1, SampleFormat.PCM_16);
+  }
+
+  public AudioFormat toAudioFormat() {
+    var encoding = this.sampleFormat.isFloat ? AudioFormat.Encoding.PCM_FLOAT : AudioFormat.Encoding.PCM_SIGNED;
+    return new AudioFormat(encoding, this.sampleRate, this.sampleFormat.bits, this.channels,
+        this.channels * this.sampleFormat.bytes(), this.sampleRate, false);
+  }
+
+  // Bytes per second of captured audio
+  public long byteRate() {
+    return (long) this.sampleRate * this.channels * this.sampleFormat.bytes();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof CaptureFormat)) {
+      return false;
+    }
+    var format = (CaptureFormat) other;
+    return this.sampleRate == format.sampleRate && this.channels == format.channels
+        && this.sampleFormat == format.sampleFormat;
+  }
+
+  @Override
+  public int hashCode() {
+    return (this.sampleRate * 31 + this.channels) * 31 + this.sampleFormat.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    var channelName = this.channels == 1 ? "mono" : this.channels == 2 ? "stereo" : this.channels + " channels";
+    return this.sampleRate + " Hz " + this.sampleFormat + " " + channelName;
+  }
+}
@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * Keeps the MIDI device and the audio line open for a whole sampling run.
+ *
+ * The line is started once and drained continuously by a reader thread into a
+ * {@link RingBuffer}. A writer thread consumes the other side of the ring,
+ * each call to {@link #record} slices its note out of that stream into a
+ * {@link Take}. The end of every take is decided by a {@link TailDetector}
+ * running on the writer thread, so nothing the reader does can block.
+ */
+public class CaptureSession implements TakeSource {
+  private static int READ_FRAMES = 512;
+  private static int RING_SECONDS = 4;
+
+  private MidiDevice midiDevice;
+  private Receiver receiver;
+  private MidiScheduler scheduler;
+  private TargetDataLine line;
+  private AudioFormat format;
+  private RingBuffer ring;
+  private Thread reader;
+  private Thread writer;
+  private volatile boolean running;
+
+  // Frames read from the line so far, only written by the reader
+  private volatile long readFrames;
+
+  // Frames taken out of the ring so far, guarded by this
+  private long streamFrames;
+
+  private int latencyFrames = -1;
+
+  // Guarded by this, the writer only appends while a take is running. The
+  // buffer is sized for the longest possible take before recording starts
+  private boolean recording;
+  private byte[] take = new byte[0];
+  private int takeLength;
+  private TailDetector detector;
+  private LevelMeter meter;
+  private SessionStats stats;
+
+  private CaptureSession(MidiDevice _midiDevice, TargetDataLine _line, AudioFormat _format,
+      TailDetector.Options tail, LevelMeter _meter, SessionStats _stats) throws Exception {
+    this.midiDevice = _midiDevice;
+    this.line = _line;
+    this.format = _format;
+    this.detector = new TailDetector(tail, _format);
+    this.meter = _meter;
+    this.stats = _stats;
+    this.ring = new RingBuffer((int) (_format.getFrameRate() * _format.getFrameSize() * RING_SECONDS));
+    this.receiver = _midiDevice.getReceiver();
+    this.scheduler = new MidiScheduler(_midiDevice, this.receiver, this::capturedFrames, _format.getFrameRate());
+  }
+
+  public static CaptureSession open(Sampler.Options options, AudioFormat format) throws Exception {
+    var midiDevice = MidiSystem.getMidiDevice(options.midiDevice);
+    var line = AudioSystem.getTargetDataLine(format, options.audioDevice);
+    return open(midiDevice, line, format, options);
+  }
+
+  // Opens a session on devices that were already looked up, the benchmarks pass fake ones
+  static CaptureSession open(MidiDevice midiDevice, TargetDataLine line, AudioFormat format,
+      Sampler.Options options) throws Exception {
+    line.open(format);
+    midiDevice.open();
+
+    if (!midiDevice.isOpen() || !line.isOpen()) {
+      line.close();
+      midiDevice.close();
+      throw new IOException("Unable to open the necessary devices");
+    }
+
+    CaptureSession session;
+    try {
+      session = new CaptureSession(midiDevice, line, format, options.tail, options.meter, options.stats);
+    } catch (Exception e) {
+      line.close();
+      midiDevice.close();
+      throw e;
+    }
+    session.start();
+    return session;
+  }
+
+  @Override
+  public AudioFormat getFormat() {
+    return this.format;
+  }
+
+  // Overrun and fill statistics of the buffer between reader and writer
+  public RingBuffer getRingBuffer() {
+    return this.ring;
+  }
+
+  // MIDI to audio latency in frames, see LatencyCalibrator
+  public void setLatencyFrames(int frames) {
+    this.latencyFrames = frames;
+  }
+
+  public int getLatencyFrames() {
+    return this.latencyFrames;
+  }
+
+  /**
+   * Frames captured by the device so far, including the ones still waiting in
+   * the line's buffer. Accurate to the device's buffer granularity.
+   */
+  public long capturedFrames() {
+    return this.readFrames + this.line.available() / this.format.getFrameSize();
+  }
+
+  private long droppedFrames() {
+    return this.ring.getDroppedBytes() / this.format.getFrameSize();
+  }
+
+  private void start() {
+    if (this.meter != null) {
+      this.meter.start(this.format);
+    }
+    this.stats.captureStarted(this.format, this.line.getBufferSize(), this.ring);
+    this.running = true;
+    this.writer = new Thread(this::writeLoop, "capture-writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+    this.reader = new Thread(this::readLoop, "capture-reader");
+    this.reader.setDaemon(true);
+    this.reader.setPriority(Thread.MAX_PRIORITY);
+    this.line.start();
+    this.reader.start();
+  }
+
+  // Producer: only moves bytes from the line into the ring
+  private void readLoop() {
+    var buffer = new byte[READ_FRAMES * this.format.getFrameSize()];
+    while (this.running) {
+      // A full line buffer means the device had to discard audio
+      this.stats.lineFill(this.line.available());
+      var read = this.line.read(buffer, 0, buffer.length);
+      if (read <= 0) {
+        continue;
+      }
+      this.readFrames += read / this.format.getFrameSize();
+      this.ring.write(buffer, 0, read);
+      LockSupport.unpark(this.writer);
+    }
+  }
+
+  // Consumer: feeds the meter, the tail detector and the current take
+  private void writeLoop() {
+    var buffer = new byte[READ_FRAMES * this.format.getFrameSize()];
+    while (this.running) {
+      var read = this.ring.read(buffer, 0, buffer.length);
+      if (read == 0) {
+        LockSupport.parkNanos(this, 1_000_000);
+        continue;
+      }
+      if (this.meter != null) {
+        this.meter.process(buffer, 0, read);
+      }
+      synchronized (this) {
+        this.streamFrames += read / this.format.getFrameSize();
+        if (!this.recording || this.detector.isFinished()) {
+          continue;
+        }
+        var length = Math.min(this.detector.process(buffer, 0, read), this.take.length - this.takeLength);
+        System.arraycopy(buffer, 0, this.take, this.takeLength, length);
+        this.takeLength += length;
+        if (this.detector.isFinished()) {
+          this.notifyAll();
+        }
+      }
+    }
+  }
+
+  @Override
+  public Take record(int note, int velocity, int sustain, int maxLength) throws Exception {
+    var takeStats = this.stats.takeStarted(note, velocity);
+    long takeStart;
+    synchronized (this) {
+      // Position of the first frame of the take in the device's frame count
+      takeStart = this.streamFrames + this.droppedFrames();
+      this.detector.reset(Math.max(sustain, maxLength));
+      var maxBytes = (long) this.format.getFrameSize() * (long) Math.ceil(this.format.getFrameRate()
+          * Math.max(sustain, maxLength) / 1000.0);
+      if (this.take.length < maxBytes) {
+        this.take = new byte[(int) Math.min(maxBytes, Integer.MAX_VALUE - 8)];
+      }
+      this.takeLength = 0;
+      this.recording = true;
+      if (this.meter != null) {
+        this.meter.markTake();
+      }
+    }
+
+    // Send the note that we wish to sample
+    var started = this.stats.start();
+    var noteOnTime = this.scheduler.send(new ShortMessage(ShortMessage.NOTE_ON, 0, note, velocity));
+    var noteOnCapture = this.capturedFrames();
+    var noteOnFrame = (int) (noteOnCapture - takeStart);
+    takeStats.end(SessionStats.Phase.MIDI, started);
+    started = this.stats.start();
+    // Turn it off exactly sustain later, a separate message as the device may still hold the first
+    var sustainFrames = Math.round(this.format.getFrameRate() * sustain / 1000.0);
+    this.scheduler.sendAfter(new ShortMessage(ShortMessage.NOTE_OFF, 0, note, velocity), noteOnTime,
+        noteOnCapture, sustain * 1000L);
+    // The release only starts once the note off is due
+    this.scheduler.awaitFrame(noteOnCapture + sustainFrames);
+    var noteOffFrame = this.scheduler.usesTimestamps() ? noteOnFrame + (int) sustainFrames
+        : (int) (this.capturedFrames() - takeStart);
+    takeStats.end(SessionStats.Phase.SUSTAIN, started);
+    started = this.stats.start();
+
+    int frames;
+    byte[] data;
+    synchronized (this) {
+      this.detector.arm();
+      while (!this.detector.isFinished() && this.running) {
+        this.wait();
+      }
+      this.recording = false;
+      if (!this.detector.isFinished()) {
+        throw new IOException("Capture session was closed during a take");
+      }
+      // The detector cuts at the start of the silence, not after the hold time
+      frames = (int) Math.min(this.takeLength / this.format.getFrameSize(), this.detector.getEndFrame());
+      data = Arrays.copyOf(this.take, frames * this.format.getFrameSize());
+    }
+    takeStats.end(SessionStats.Phase.TAIL, started);
+    var take = new Take(note, velocity, 0, this.format, data, frames);
+    take.noteOnFrame = noteOnFrame;
+    take.noteOffFrame = noteOffFrame;
+    take.latencyFrames = this.latencyFrames;
+    take.stats = takeStats;
+    this.stats.takeCaptured(takeStats, take);
+    return take;
+  }
+
+  @Override
+  public void close() {
+    this.running = false;
+    synchronized (this) {
+      this.notifyAll();
+    }
+    this.line.stop();
+    this.line.flush();
+    LockSupport.unpark(this.writer);
+    try {
+      this.reader.join();
+      this.writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    this.line.close();
+    this.receiver.close();
+    this.midiDevice.close();
+  }
+}
@@ -0,0 +1,34 @@
+/**
+ * File type the finished takes are written as.
+ */
+public enum ContainerFormat {
+  WAV("wav"),
+  FLAC("flac");
+
+  public String extension;
+
+  private ContainerFormat(String _extension) {
+    this.extension = _extension;
+  }
+
+  public TakeEncoder encoder(SampleFormat sampleFormat) {
+    switch (this) {
+      case FLAC:
+        return new FlacEncoder(sampleFormat);
+      default:
+        return new WaveEncoder(sampleFormat);
+    }
+  }
+
+  // Puts this format's extension on a file name from the naming convention
+  public String rename(String name) {
+    var dot = name.lastIndexOf('.');
+    var base = dot < 0 ? name : name.substring(0, dot);
+    return base + "." + this.extension;
+  }
+
+  @Override
+  public String toString() {
+    return this.extension.toUpperCase();
+  }
+}
@@ -0,0 +1,205 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Mixer;
+
+/**
+ * Cached view of the MIDI outputs and audio inputs on this machine.
+ *
+ * Devices are probed in parallel on background threads, a scan never runs on
+ * the caller's thread. Listeners are told about the new snapshot whenever a
+ * scan finds a different set of devices, they are called on a registry thread
+ * and have to hop to their own thread themselves.
+ */
+public class DeviceRegistry implements AutoCloseable {
+
+  public static class AudioInput {
+    public Mixer.Info info;
+
+    // Capture formats the device accepts, from SoundUtil.SAMPLE_RATES
+    public List<CaptureFormat> formats;
+
+    public AudioInput(Mixer.Info _info, List<CaptureFormat> _formats) {
+      this.info = _info;
+      this.formats = _formats;
+    }
+  }
+
+  public static class MidiOutput {
+    public MidiDevice.Info info;
+    public int maxReceivers;
+
+    // False for software devices such as the Java synthesizer
+    public boolean hardware;
+
+    // Software synthesizer that can render offline (see SynthSource)
+    public boolean renderable;
+
+    public MidiOutput(MidiDevice.Info _info, int _maxReceivers, boolean _hardware, boolean _renderable) {
+      this.info = _info;
+      this.maxReceivers = _maxReceivers;
+      this.hardware = _hardware;
+      this.renderable = _renderable;
+    }
+  }
+
+  public static class Snapshot {
+    public List<AudioInput> audioInputs;
+    public List<MidiOutput> midiOutputs;
+
+    public Snapshot(List<AudioInput> _audioInputs, List<MidiOutput> _midiOutputs) {
+      this.audioInputs = _audioInputs;
+      this.midiOutputs = _midiOutputs;
+    }
+
+    public Mixer.Info[] audioDevices() {
+      return this.audioInputs.stream().map(input -> input.info).toArray(Mixer.Info[]::new);
+    }
+
+    // Hardware MIDI outputs only, like SoundUtil.midiOutputs
+    public MidiDevice.Info[] midiDevices() {
+      return this.midiOutputs.stream().filter(output -> output.hardware).map(output -> output.info)
+          .toArray(MidiDevice.Info[]::new);
+    }
+
+    // Software synthesizers, like SoundUtil.softSynthesizers
+    public MidiDevice.Info[] synthesizers() {
+      return this.midiOutputs.stream().filter(output -> output.renderable).map(output -> output.info)
+          .toArray(MidiDevice.Info[]::new);
+    }
+
+    // Capture formats of the audio input, empty if it is not (or no longer) there
+    public List<CaptureFormat> formats(Mixer.Info info) {
+      return this.audioInputs.stream().filter(input -> info != null && input.info.getName().equals(info.getName()))
+          .findFirst().map(input -> input.formats).orElse(List.of());
+    }
+
+    public boolean isSynthesizer(MidiDevice.Info info) {
+      return this.midiOutputs.stream().anyMatch(output -> output.renderable && output.info.equals(info));
+    }
+
+    private String key() {
+      return Stream.concat(this.audioInputs.stream().map(input -> "a:" + input.info.getName()),
+          this.midiOutputs.stream().map(output -> "m:" + output.info.getName()))
+          .collect(Collectors.joining("\n"));
+    }
+  }
+
+  private ScheduledExecutorService executor;
+  private List<Consumer<Snapshot>> listeners = new CopyOnWriteArrayList<>();
+  private volatile Snapshot current = new Snapshot(List.of(), List.of());
+  private CompletableFuture<Snapshot> pending;
+
+  public DeviceRegistry() {
+    var count = new AtomicInteger();
+    var threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    this.executor = new ScheduledThreadPoolExecutor(threads, runnable -> {
+      var thread = new Thread(runnable, "device-registry-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  // Latest completed scan, empty until the first one finishes
+  public Snapshot current() {
+    return this.current;
+  }
+
+  public void addListener(Consumer<Snapshot> listener) {
+    this.listeners.add(listener);
+  }
+
+  // Starts a scan unless one is already running
+  public synchronized CompletableFuture<Snapshot> refresh() {
+    if (this.pending != null && !this.pending.isDone()) {
+      return this.pending;
+    }
+    this.pending = CompletableFuture.supplyAsync(this::scan, this.executor).thenCompose(futures -> futures)
+        .thenApply(this::publish);
+    return this.pending;
+  }
+
+  public void scheduleRefresh(long period, TimeUnit unit) {
+    this.executor.scheduleWithFixedDelay(this::refresh, period, period, unit);
+  }
+
+  private CompletableFuture<Snapshot> scan() {
+    var audio = Stream.of(AudioSystem.getMixerInfo())
+        .map(info -> CompletableFuture.supplyAsync(() -> probeAudio(info), this.executor))
+        .collect(Collectors.toList());
+    var midi = Stream.of(MidiSystem.getMidiDeviceInfo())
+        .map(info -> CompletableFuture.supplyAsync(() -> probeMidi(info), this.executor))
+        .collect(Collectors.toList());
+
+    var all = new ArrayList<CompletableFuture<?>>(audio);
+    all.addAll(midi);
+    return CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+      var audioInputs = audio.stream().map(CompletableFuture::join).filter(input -> input != null)
+          .sorted(Comparator.comparing(input -> input.info.getName())).collect(Collectors.toList());
+      var midiOutputs = midi.stream().map(CompletableFuture::join).filter(output -> output != null)
+          .sorted(Comparator.comparing(output -> output.info.getName())).collect(Collectors.toList());
+      return new Snapshot(audioInputs, midiOutputs);
+    });
+  }
+
+  private static AudioInput probeAudio(Mixer.Info info) {
+    if (!SoundUtil.hasTargetDataLines(info)) {
+      return null;
+    }
+    var formats = new ArrayList<CaptureFormat>();
+    for (var rate : SoundUtil.SAMPLE_RATES) {
+      for (var channels = 1; channels <= 2; ++channels) {
+        for (var sampleFormat : SampleFormat.values()) {
+          var format = new CaptureFormat(rate, channels, sampleFormat);
+          if (SoundUtil.supportsCapture(info, format)) {
+            formats.add(format);
+          }
+        }
+      }
+    }
+    return new AudioInput(info, formats);
+  }
+
+  private static MidiOutput probeMidi(MidiDevice.Info info) {
+    try {
+      var device = MidiSystem.getMidiDevice(info);
+      if (device.getMaxReceivers() == 0) {
+        return null;
+      }
+      return new MidiOutput(info, device.getMaxReceivers(), SoundUtil.isHardwareOutput(device),
+          SoundUtil.canRender(device));
+    } catch (MidiUnavailableException e) {
+      return null;
+    }
+  }
+
+  private Snapshot publish(Snapshot snapshot) {
+    var changed = !snapshot.key().equals(this.current.key());
+    this.current = snapshot;
+    if (changed) {
+      for (var listener : this.listeners) {
+        listener.accept(snapshot);
+      }
+    }
+    return snapshot;
+  }
+
+  @Override
+  public void close() {
+    this.executor.shutdownNow();
+  }
+}
@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+
+/**
+ * Writes session events as key=value lines, to the console for headless runs
+ * or to session.log next to the samples.
+ *
+ * The console only gets the takes and the end of the run. A log file also
+ * gets every take start, the phase timings and the level at most once a
+ * second, each line prefixed with the time.
+ */
+public class EventLog implements Flow.Subscriber<SessionEvent> {
+  static String FILE_NAME = "session.log";
+
+  private static long LEVEL_INTERVAL_NANOS = 1_000_000_000L;
+
+  private PrintStream out;
+  private boolean file;
+
+  // Only this instrument and the run wide events, -1 for everything
+  private int instrument;
+
+  private long lastLevel = System.nanoTime() - LEVEL_INTERVAL_NANOS;
+  private CountDownLatch done = new CountDownLatch(1);
+
+  private EventLog(PrintStream _out, boolean _file, int _instrument) {
+    this.out = _out;
+    this.file = _file;
+    this.instrument = _instrument;
+  }
+
+  public static EventLog console() {
+    return new EventLog(System.out, false, -1);
+  }
+
+  // Appends the events of one instrument to the log in directory
+  public static EventLog open(Path directory, int instrument) throws IOException {
+    var output = Files.newOutputStream(directory.resolve(FILE_NAME), StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND);
+    return new EventLog(new PrintStream(output, true, StandardCharsets.UTF_8), true, instrument);
+  }
+
+  // Waits until every event published before the publisher was closed has been written
+  public void await() throws InterruptedException {
+    this.done.await();
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    subscription.request(Long.MAX_VALUE);
+  }
+
+  @Override
+  public void onNext(SessionEvent event) {
+    if (this.instrument >= 0 && event.instrument >= 0 && event.instrument != this.instrument) {
+      return;
+    }
+    var line = this.format(event);
+    if (line == null) {
+      return;
+    }
+    if (this.file) {
+      line = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME) + " " + line;
+    }
+    synchronized (this.out) {
+      this.out.println(line);
+    }
+  }
+
+  private String format(SessionEvent event) {
+    if (event instanceof SessionEvent.TakeFinished) {
+      var take = (SessionEvent.TakeFinished) event;
+      return String.format(Locale.ROOT, "event=take instrument=%d note=%d velocity=%d current=%d total=%d eta=%d skipped=%b",
+          take.instrument, take.note, take.velocity, take.current, take.total, take.remaining.toSeconds(),
+          take.skipped);
+    }
+    if (event instanceof SessionEvent.TakeFailed) {
+      var take = (SessionEvent.TakeFailed) event;
+      return String.format(Locale.ROOT, "event=take-failed instrument=%d note=%d velocity=%d round=%d retaken=%b reason=\"%s\"",
+          take.instrument, take.note, take.velocity, take.round, take.retaken, take.reason);
+    }
+    if (event instanceof SessionEvent.Finished) {
+      var finished = (SessionEvent.Finished) event;
+      if (finished.error != null) {
+        return String.format(Locale.ROOT, "event=failed seconds=%d message=\"%s\"", finished.elapsed.toSeconds(),
+            finished.error);
+      }
+      return String.format(Locale.ROOT, "event=finished seconds=%d", finished.elapsed.toSeconds());
+    }
+    if (!this.file) {
+      return null;
+    }
+    if (event instanceof SessionEvent.TakeStarted) {
+      var take = (SessionEvent.TakeStarted) event;
+      return String.format(Locale.ROOT, "event=take-started instrument=%d note=%d velocity=%d round=%d attempt=%d",
+          take.instrument, take.note, take.velocity, take.round, take.attempt);
+    }
+    if (event instanceof SessionEvent.PhaseTiming) {
+      var timing = (SessionEvent.PhaseTiming) event;
+      return String.format(Locale.ROOT, "event=phase instrument=%d phase=%s note=%d millis=%.3f", timing.instrument,
+          timing.phase.name().toLowerCase(), timing.note, timing.nanos / 1e6);
+    }
+    if (event instanceof SessionEvent.Level) {
+      var now = System.nanoTime();
+      if (now - this.lastLevel < LEVEL_INTERVAL_NANOS) {
+        return null;
+      }
+      this.lastLevel = now;
+      var level = (SessionEvent.Level) event;
+      return String.format(Locale.ROOT, "event=level instrument=%d peak=%.1f rms=%.1f", level.instrument, level.peakDb,
+          level.rmsDb);
+    }
+    return null;
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    this.finish();
+  }
+
+  @Override
+  public void onComplete() {
+    this.finish();
+  }
+
+  private void finish() {
+    if (this.file) {
+      this.out.close();
+    }
+    this.done.countDown();
+  }
+}
@@ -0,0 +1,96 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In place radix-2 complex FFT.
+ *
+ * A plan holds the twiddle factors and bit reversal table of one size. Plans
+ * are immutable, so a single cached plan per size is shared by every thread,
+ * the arrays being transformed belong to the caller.
+ */
+public class FFT {
+  private static ConcurrentHashMap<Integer, FFT> PLANS = new ConcurrentHashMap<>();
+
+  private int size;
+  private int[] reversed;
+  private double[] cos;
+  private double[] sin;
+
+  private FFT(int _size) {
+    this.size = _size;
+    var bits = Integer.numberOfTrailingZeros(_size);
+    this.reversed = new int[_size];
+    for (var i = 0; i < _size; ++i) {
+      this.reversed[i] = Integer.reverse(i) >>> (32 - bits);
+    }
+    this.cos = new double[_size / 2];
+    this.sin = new double[_size / 2];
+    for (var i = 0; i < _size / 2; ++i) {
+      this.cos[i] = Math.cos(2 * Math.PI * i / _size);
+      this.sin[i] = Math.sin(2 * Math.PI * i / _size);
+    }
+  }
+
+  // Cached plan for size, which has to be a power of two
+  public static FFT plan(int size) {
+    if (size < 2 || Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException("FFT size has to be a power of two, not " + size);
+    }
+    return PLANS.computeIfAbsent(size, FFT::new);
+  }
+
+  // Smallest power of two that is at least n
+  public static int sizeFor(int n) {
+    return n <= 2 ? 2 : Integer.highestOneBit(n - 1) << 1;
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  public void forward(double[] real, double[] imaginary) {
+    this.transform(real, imaginary, -1);
+  }
+
+  // Inverse transform, scaled by 1 / size
+  public void inverse(double[] real, double[] imaginary) {
+    this.transform(real, imaginary, 1);
+    var scale = 1.0 / this.size;
+    for (var i = 0; i < this.size; ++i) {
+      real[i] *= scale;
+      imaginary[i] *= scale;
+    }
+  }
+
+  private void transform(double[] real, double[] imaginary, int sign) {
+    var n = this.size;
+    for (var i = 0; i < n; ++i) {
+      var j = this.reversed[i];
+      if (j > i) {
+        var t = real[i];
+        real[i] = real[j];
+        real[j] = t;
+        t = imaginary[i];
+        imaginary[i] = imaginary[j];
+        imaginary[j] = t;
+      }
+    }
+    for (var length = 2; length <= n; length <<= 1) {
+      var half = length / 2;
+      var step = n / length;
+      for (var start = 0; start < n; start += length) {
+        for (var k = 0; k < half; ++k) {
+          var wr = this.cos[k * step];
+          var wi = sign * this.sin[k * step];
+          var a = start + k;
+          var b = a + half;
+          var tr = real[b] * wr - imaginary[b] * wi;
+          var ti = real[b] * wi + imaginary[b] * wr;
+          real[b] = real[a] - tr;
+          imaginary[b] = imaginary[a] - ti;
+          real[a] += tr;
+          imaginary[a] += ti;
+        }
+      }
+    }
+  }
+}
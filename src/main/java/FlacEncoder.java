@@ -0,0 +1,764 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Writes takes as FLAC files, in plain Java.
+ *
+ * The take is cut into fixed size blocks that are encoded independently and
+ * in parallel on the common fork/join pool: every channel of a block gets the
+ * cheapest of a constant, verbatim, fixed or LPC subframe (orders up to
+ * MAX_LPC_ORDER, coefficients from a windowed autocorrelation), stereo blocks
+ * also try the left/side, right/side and mid/side decorrelations. Residuals
+ * are Rice coded with the partition order chosen per subframe.
+ *
+ * The chunks of the WAV file a {@link WaveEncoder} would write (RIFF header,
+ * fmt, the data chunk header, smpl and inst, without the JUNK placeholder)
+ * are stored as "riff" APPLICATION blocks in file order, the layout flac
+ * --keep-foreign-metadata writes, so flac -d --keep-foreign-metadata gives
+ * back a WAV with the sampler chunks. A loop is also given as
+ * LOOPSTART/LOOPLENGTH comments.
+ */
+public class FlacEncoder implements TakeEncoder {
+  private static int BLOCK_SIZE = 4096;
+  private static int MAX_FIXED_ORDER = 4;
+  private static int MAX_LPC_ORDER = 12;
+  private static int LPC_PRECISION = 15;
+  private static int MAX_PARTITION_ORDER = 8;
+
+  // Largest Rice parameter of the 4 and 5 bit parameter codings (the next value is the escape code)
+  private static int MAX_RICE_PARAMETER = 14;
+  private static int MAX_RICE2_PARAMETER = 30;
+
+  private static int SUBFRAME_CONSTANT = 0;
+  private static int SUBFRAME_VERBATIM = 1;
+  private static int SUBFRAME_FIXED = 8;
+  private static int SUBFRAME_LPC = 32;
+
+  private static int CHANNELS_LEFT_SIDE = 8;
+  private static int CHANNELS_RIGHT_SIDE = 9;
+  private static int CHANNELS_MID_SIDE = 10;
+
+  private static int METADATA_STREAMINFO = 0;
+  private static int METADATA_APPLICATION = 2;
+  private static int METADATA_VORBIS_COMMENT = 4;
+
+  private static String VENDOR = "autosampler";
+
+  private SampleFormat sampleFormat;
+
+  public FlacEncoder(SampleFormat _sampleFormat) {
+    if (_sampleFormat != SampleFormat.PCM_16 && _sampleFormat != SampleFormat.PCM_24) {
+      throw new IllegalArgumentException("FLAC files can only be written as 16 or 24-bit, not " + _sampleFormat);
+    }
+    this.sampleFormat = _sampleFormat;
+  }
+
+  @Override
+  public void write(Take take) throws Exception {
+    var channels = take.channels();
+    var sampleRate = (int) take.sampleRate();
+    var bits = this.sampleFormat.bits;
+    var pcm = quantize(take, bits);
+
+    var blocks = (take.frames + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    byte[][] frames = IntStream.range(0, blocks).parallel()
+        .mapToObj(block -> encodeFrame(pcm, take.frames, block, sampleRate, bits))
+        .toArray(byte[][]::new);
+
+    try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(take.output), 1 << 16)) {
+      output.write("fLaC".getBytes(StandardCharsets.US_ASCII));
+      var metadata = new ArrayList<byte[]>();
+      metadata.add(metadataBlock(METADATA_STREAMINFO, streamInfo(pcm, take.frames, frames, sampleRate, bits)));
+      for (var chunk : riffChunks(take.metadata, channels, sampleRate, this.sampleFormat, take.frames)) {
+        metadata.add(metadataBlock(METADATA_APPLICATION, chunk));
+      }
+      metadata.add(metadataBlock(METADATA_VORBIS_COMMENT, vorbisComment(take.metadata)));
+      // The last metadata block is flagged in its header
+      metadata.get(metadata.size() - 1)[0] |= 0x80;
+      for (var block : metadata) {
+        output.write(block);
+      }
+      for (var frame : frames) {
+        output.write(frame);
+      }
+    }
+  }
+
+  private static byte[] metadataBlock(int type, byte[] data) {
+    var block = new byte[4 + data.length];
+    block[0] = (byte) type;
+    block[1] = (byte) (data.length >> 16);
+    block[2] = (byte) (data.length >> 8);
+    block[3] = (byte) data.length;
+    System.arraycopy(data, 0, block, 4, data.length);
+    return block;
+  }
+
+  // Same rounding and clipping as WavWriter (see PcmCodec.quantize), one array per channel
+  private static int[][] quantize(Take take, int bits) {
+    var channels = take.channels();
+    var pcm = new int[channels][take.frames];
+    for (var frame = 0; frame < take.frames; ++frame) {
+      for (var channel = 0; channel < channels; ++channel) {
+        pcm[channel][frame] = PcmCodec.quantize(take.samples[frame * channels + channel], bits);
+      }
+    }
+    return pcm;
+  }
+
+  private static byte[] streamInfo(int[][] pcm, int length, byte[][] frames, int sampleRate, int bits) {
+    var minFrame = Integer.MAX_VALUE;
+    var maxFrame = 0;
+    for (var frame : frames) {
+      minFrame = Math.min(minFrame, frame.length);
+      maxFrame = Math.max(maxFrame, frame.length);
+    }
+    var writer = new BitWriter(34);
+    writer.write(BLOCK_SIZE, 16);
+    writer.write(BLOCK_SIZE, 16);
+    writer.write(frames.length == 0 ? 0 : minFrame, 24);
+    writer.write(maxFrame, 24);
+    writer.write(sampleRate, 20);
+    writer.write(pcm.length - 1, 3);
+    writer.write(bits - 1, 5);
+    writer.writeLong(length, 36);
+    writer.writeBytes(md5(pcm, length, bits));
+    return writer.toByteArray();
+  }
+
+  // MD5 of the samples as interleaved little endian integers of bits / 8 bytes
+  private static byte[] md5(int[][] pcm, int length, int bits) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    var bytes = bits / 8;
+    var buffer = new byte[BLOCK_SIZE * pcm.length * bytes];
+    for (var start = 0; start < length; start += BLOCK_SIZE) {
+      var count = Math.min(BLOCK_SIZE, length - start);
+      var position = 0;
+      for (var i = start; i < start + count; ++i) {
+        for (var channel = 0; channel < pcm.length; ++channel) {
+          var value = pcm[channel][i];
+          for (var b = 0; b < bytes; ++b) {
+            buffer[position++] = (byte) (value >> (8 * b));
+          }
+        }
+      }
+      digest.update(buffer, 0, position);
+    }
+    return digest.digest();
+  }
+
+  // The WAV file's chunks, one APPLICATION block each, the data chunk only as its header
+  private static List<byte[]> riffChunks(SampleMetadata metadata, int channels, int sampleRate,
+      SampleFormat sampleFormat, int frames) {
+    var dataBytes = (long) frames * channels * sampleFormat.bytes();
+    var fmtSize = WavWriter.fmtChunkSize(channels, sampleFormat);
+    var metadataSize = metadata != null ? 8 + WavWriter.SMPL_SIZE + 8 + WavWriter.INST_SIZE + 1 : 0;
+    // Chunks are word aligned, the pad byte after odd sized audio is not a block of its own
+    var riffSize = 4 + fmtSize + 8 + dataBytes + (dataBytes % 2) + metadataSize;
+
+    var blocks = new ArrayList<byte[]>();
+    var header = riffBlock(12);
+    WavWriter.putId(header, "RIFF");
+    header.putInt((int) riffSize);
+    WavWriter.putId(header, "WAVE");
+    blocks.add(header.array());
+    var fmt = riffBlock(fmtSize);
+    WavWriter.writeFmtChunk(fmt, channels, sampleRate, sampleFormat);
+    blocks.add(fmt.array());
+    var data = riffBlock(8);
+    WavWriter.putId(data, "data");
+    data.putInt((int) dataBytes);
+    blocks.add(data.array());
+    if (metadata != null) {
+      var smpl = riffBlock(8 + WavWriter.SMPL_SIZE);
+      WavWriter.writeSmplChunk(smpl, metadata, sampleRate);
+      blocks.add(smpl.array());
+      var inst = riffBlock(8 + WavWriter.INST_SIZE + 1);
+      WavWriter.writeInstChunk(inst, metadata);
+      blocks.add(inst.array());
+    }
+    return blocks;
+  }
+
+  private static ByteBuffer riffBlock(int chunkSize) {
+    var block = ByteBuffer.allocate(4 + chunkSize).order(ByteOrder.LITTLE_ENDIAN);
+    block.put("riff".getBytes(StandardCharsets.US_ASCII));
+    return block;
+  }
+
+  private static byte[] vorbisComment(SampleMetadata metadata) {
+    var comments = new ArrayList<String>();
+    if (metadata != null && metadata.hasLoop()) {
+      comments.add("LOOPSTART=" + metadata.loopStart);
+      comments.add("LOOPLENGTH=" + (metadata.loopEnd - metadata.loopStart + 1));
+    }
+    var vendor = VENDOR.getBytes(StandardCharsets.UTF_8);
+    var size = 4 + vendor.length + 4;
+    for (var comment : comments) {
+      size += 4 + comment.getBytes(StandardCharsets.UTF_8).length;
+    }
+    // Unlike the rest of FLAC, comment lengths are little endian
+    var block = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    block.putInt(vendor.length).put(vendor).putInt(comments.size());
+    for (var comment : comments) {
+      var bytes = comment.getBytes(StandardCharsets.UTF_8);
+      block.putInt(bytes.length).put(bytes);
+    }
+    return block.array();
+  }
+
+  private static int sampleRateCode(int sampleRate) {
+    switch (sampleRate) {
+      case 88200:
+        return 1;
+      case 176400:
+        return 2;
+      case 192000:
+        return 3;
+      case 32000:
+        return 8;
+      case 44100:
+        return 9;
+      case 48000:
+        return 10;
+      case 96000:
+        return 11;
+      default:
+        // Taken from STREAMINFO
+        return 0;
+    }
+  }
+
+  private static byte[] encodeFrame(int[][] pcm, int length, int block, int sampleRate, int bits) {
+    var scratch = SCRATCH.get();
+    var start = block * BLOCK_SIZE;
+    var count = Math.min(BLOCK_SIZE, length - start);
+    var channels = pcm.length;
+
+    // Pick the stereo decorrelation with the smallest estimated cost
+    var assignment = channels - 1;
+    if (channels == 2) {
+      var left = scratch.channel(0);
+      var right = scratch.channel(1);
+      var mid = scratch.channel(2);
+      var side = scratch.channel(3);
+      for (var i = 0; i < count; ++i) {
+        var l = pcm[0][start + i];
+        var r = pcm[1][start + i];
+        left[i] = l;
+        right[i] = r;
+        mid[i] = (l + r) >> 1;
+        side[i] = l - r;
+      }
+      var leftCost = estimate(left, count);
+      var rightCost = estimate(right, count);
+      var midCost = estimate(mid, count);
+      var sideCost = estimate(side, count);
+      var best = leftCost + rightCost;
+      if (leftCost + sideCost < best) {
+        best = leftCost + sideCost;
+        assignment = CHANNELS_LEFT_SIDE;
+      }
+      if (rightCost + sideCost < best) {
+        best = rightCost + sideCost;
+        assignment = CHANNELS_RIGHT_SIDE;
+      }
+      if (midCost + sideCost < best) {
+        assignment = CHANNELS_MID_SIDE;
+      }
+    }
+
+    var writer = scratch.writer;
+    writer.reset();
+    writer.write(0xFFF8, 16);
+    writer.write(count == BLOCK_SIZE ? 12 : 7, 4);
+    writer.write(sampleRateCode(sampleRate), 4);
+    writer.write(assignment, 4);
+    writer.write(bits == 16 ? 4 : 6, 3);
+    writer.write(0, 1);
+    writer.writeUtf8(block);
+    if (count != BLOCK_SIZE) {
+      writer.write(count - 1, 16);
+    }
+    writer.write(crc8(writer.buffer(), writer.length()), 8);
+
+    if (channels == 2) {
+      var left = scratch.channel(0);
+      var right = scratch.channel(1);
+      var mid = scratch.channel(2);
+      var side = scratch.channel(3);
+      if (assignment == CHANNELS_LEFT_SIDE) {
+        encodeSubframe(writer, scratch, left, count, bits);
+        encodeSubframe(writer, scratch, side, count, bits + 1);
+      } else if (assignment == CHANNELS_RIGHT_SIDE) {
+        encodeSubframe(writer, scratch, side, count, bits + 1);
+        encodeSubframe(writer, scratch, right, count, bits);
+      } else if (assignment == CHANNELS_MID_SIDE) {
+        encodeSubframe(writer, scratch, mid, count, bits);
+        encodeSubframe(writer, scratch, side, count, bits + 1);
+      } else {
+        encodeSubframe(writer, scratch, left, count, bits);
+        encodeSubframe(writer, scratch, right, count, bits);
+      }
+    } else {
+      for (var channel = 0; channel < channels; ++channel) {
+        var samples = scratch.channel(0);
+        System.arraycopy(pcm[channel], start, samples, 0, count);
+        encodeSubframe(writer, scratch, samples, count, bits);
+      }
+    }
+
+    writer.alignToByte();
+    writer.write(crc16(writer.buffer(), writer.length()), 16);
+    return writer.toByteArray();
+  }
+
+  // Sum of second order differences, a cheap stand-in for the coded size
+  private static long estimate(int[] samples, int count) {
+    var sum = 0L;
+    for (var i = 2; i < count; ++i) {
+      sum += Math.abs((long) samples[i] - 2L * samples[i - 1] + samples[i - 2]);
+    }
+    return sum;
+  }
+
+  private static void encodeSubframe(BitWriter writer, Scratch scratch, int[] samples, int count, int bits) {
+    var constant = true;
+    for (var i = 1; i < count && constant; ++i) {
+      constant = samples[i] == samples[0];
+    }
+    if (constant) {
+      writer.write(SUBFRAME_CONSTANT << 1, 8);
+      writer.writeSigned(samples[0], bits);
+      return;
+    }
+
+    var bestCost = (long) count * bits;
+    var bestType = SUBFRAME_VERBATIM;
+    var bestOrder = 0;
+    var residual = scratch.residual;
+
+    for (var order = 0; order <= Math.min(MAX_FIXED_ORDER, count - 1); ++order) {
+      fixedResidual(samples, count, order, residual);
+      var cost = 6 + order * bits + riceCost(residual, count, order, scratch);
+      if (cost < bestCost) {
+        bestCost = cost;
+        bestType = SUBFRAME_FIXED;
+        bestOrder = order;
+      }
+    }
+
+    var maxOrder = Math.min(MAX_LPC_ORDER, count - 1);
+    var lpcOrders = computeLpc(samples, count, maxOrder, scratch);
+    for (var order = 1; order <= lpcOrders; ++order) {
+      var shift = quantizeLpc(scratch.lpc[order], order, scratch.coefficients[order]);
+      if (!lpcResidual(samples, count, order, scratch.coefficients[order], shift, residual)) {
+        continue;
+      }
+      var cost = 6 + order * bits + 9 + order * LPC_PRECISION + riceCost(residual, count, order, scratch);
+      if (cost < bestCost) {
+        bestCost = cost;
+        bestType = SUBFRAME_LPC;
+        bestOrder = order;
+        scratch.shifts[order] = shift;
+      }
+    }
+
+    if (bestType == SUBFRAME_VERBATIM) {
+      writer.write(SUBFRAME_VERBATIM << 1, 8);
+      for (var i = 0; i < count; ++i) {
+        writer.writeSigned(samples[i], bits);
+      }
+      return;
+    }
+
+    if (bestType == SUBFRAME_FIXED) {
+      writer.write((SUBFRAME_FIXED | bestOrder) << 1, 8);
+      for (var i = 0; i < bestOrder; ++i) {
+        writer.writeSigned(samples[i], bits);
+      }
+      fixedResidual(samples, count, bestOrder, residual);
+    } else {
+      var coefficients = scratch.coefficients[bestOrder];
+      var shift = scratch.shifts[bestOrder];
+      writer.write((SUBFRAME_LPC | (bestOrder - 1)) << 1, 8);
+      for (var i = 0; i < bestOrder; ++i) {
+        writer.writeSigned(samples[i], bits);
+      }
+      writer.write(LPC_PRECISION - 1, 4);
+      writer.writeSigned(shift, 5);
+      for (var i = 0; i < bestOrder; ++i) {
+        writer.writeSigned(coefficients[i], LPC_PRECISION);
+      }
+      lpcResidual(samples, count, bestOrder, coefficients, shift, residual);
+    }
+    riceCost(residual, count, bestOrder, scratch);
+    writeResidual(writer, residual, count, bestOrder, scratch);
+  }
+
+  private static void fixedResidual(int[] x, int count, int order, int[] residual) {
+    switch (order) {
+      case 0:
+        for (var i = 0; i < count; ++i) {
+          residual[i] = x[i];
+        }
+        break;
+      case 1:
+        for (var i = 1; i < count; ++i) {
+          residual[i] = x[i] - x[i - 1];
+        }
+        break;
+      case 2:
+        for (var i = 2; i < count; ++i) {
+          residual[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+        }
+        break;
+      case 3:
+        for (var i = 3; i < count; ++i) {
+          residual[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+        }
+        break;
+      default:
+        for (var i = 4; i < count; ++i) {
+          residual[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+        }
+        break;
+    }
+  }
+
+  /**
+   * Levinson-Durbin on the autocorrelation of the Welch windowed block, fills
+   * scratch.lpc[order] for every order and returns the highest usable one.
+   */
+  private static int computeLpc(int[] samples, int count, int maxOrder, Scratch scratch) {
+    var windowed = scratch.windowed;
+    var half = (count - 1) / 2.0;
+    for (var i = 0; i < count; ++i) {
+      var w = (i - half) / (half + 1);
+      windowed[i] = samples[i] * (1 - w * w);
+    }
+    var autocorrelation = scratch.autocorrelation;
+    for (var lag = 0; lag <= maxOrder; ++lag) {
+      var sum = 0.0;
+      for (var i = lag; i < count; ++i) {
+        sum += windowed[i] * windowed[i - lag];
+      }
+      autocorrelation[lag] = sum;
+    }
+    if (autocorrelation[0] == 0) {
+      return 0;
+    }
+
+    var error = autocorrelation[0];
+    var previous = scratch.lpc[0];
+    for (var order = 1; order <= maxOrder; ++order) {
+      var acc = autocorrelation[order];
+      for (var j = 0; j < order - 1; ++j) {
+        acc -= previous[j] * autocorrelation[order - 1 - j];
+      }
+      var reflection = acc / error;
+      var lpc = scratch.lpc[order];
+      for (var j = 0; j < order - 1; ++j) {
+        lpc[j] = previous[j] - reflection * previous[order - 2 - j];
+      }
+      lpc[order - 1] = reflection;
+      error *= 1 - reflection * reflection;
+      if (error <= 0) {
+        return order;
+      }
+      previous = lpc;
+    }
+    return maxOrder;
+  }
+
+  // Rounds lpc to LPC_PRECISION bit integers with error feedback, returns the shift
+  private static int quantizeLpc(double[] lpc, int order, int[] coefficients) {
+    var max = 0.0;
+    for (var i = 0; i < order; ++i) {
+      max = Math.max(max, Math.abs(lpc[i]));
+    }
+    var limit = (1 << (LPC_PRECISION - 1)) - 1;
+    var shift = max == 0 ? 0 : LPC_PRECISION - 2 - Math.getExponent(max);
+    shift = Math.max(0, Math.min(15, shift));
+    var error = 0.0;
+    for (var i = 0; i < order; ++i) {
+      error += lpc[i] * (1 << shift);
+      var q = (int) Math.max(-limit - 1, Math.min(limit, Math.round(error)));
+      error -= q;
+      coefficients[i] = q;
+    }
+    return shift;
+  }
+
+  // False if a residual does not fit the Rice coder, the order is skipped then
+  private static boolean lpcResidual(int[] x, int count, int order, int[] coefficients, int shift, int[] residual) {
+    for (var i = order; i < count; ++i) {
+      var sum = 0L;
+      for (var j = 0; j < order; ++j) {
+        sum += (long) coefficients[j] * x[i - j - 1];
+      }
+      var value = x[i] - (sum >> shift);
+      if (value >= (1 << 30) || value <= -(1 << 30)) {
+        return false;
+      }
+      residual[i] = (int) value;
+    }
+    return true;
+  }
+
+  /**
+   * Estimated bits of the residual section with the best partition order,
+   * which is left in scratch.partitionOrder with the parameters in
+   * scratch.parameters.
+   */
+  private static long riceCost(int[] residual, int count, int order, Scratch scratch) {
+    // Sums of the folded residuals for the finest usable partitioning
+    var maxOrder = 0;
+    while (maxOrder < MAX_PARTITION_ORDER && count % (2 << maxOrder) == 0 && (count >> (maxOrder + 1)) > order) {
+      maxOrder++;
+    }
+    var sums = scratch.sums[maxOrder];
+    var partitions = 1 << maxOrder;
+    var partitionSize = count >> maxOrder;
+    for (var p = 0; p < partitions; ++p) {
+      var sum = 0L;
+      for (var i = p == 0 ? order : p * partitionSize; i < (p + 1) * partitionSize; ++i) {
+        var value = residual[i];
+        sum += ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+      }
+      sums[p] = sum;
+    }
+    for (var level = maxOrder - 1; level >= 0; --level) {
+      var finer = scratch.sums[level + 1];
+      var coarser = scratch.sums[level];
+      for (var p = 0; p < (1 << level); ++p) {
+        coarser[p] = finer[2 * p] + finer[2 * p + 1];
+      }
+    }
+
+    var bestCost = Long.MAX_VALUE;
+    for (var level = 0; level <= maxOrder; ++level) {
+      var cost = 4L;
+      var size = count >> level;
+      var wide = false;
+      for (var p = 0; p < (1 << level); ++p) {
+        var samples = p == 0 ? size - order : size;
+        var parameter = riceParameter(scratch.sums[level][p], samples);
+        scratch.candidate[p] = parameter;
+        wide |= parameter > MAX_RICE_PARAMETER;
+        cost += (long) samples * (parameter + 1) + (scratch.sums[level][p] >>> parameter);
+      }
+      cost += (1L << level) * (wide ? 5 : 4);
+      if (cost < bestCost) {
+        bestCost = cost;
+        scratch.partitionOrder = level;
+        System.arraycopy(scratch.candidate, 0, scratch.parameters, 0, 1 << level);
+      }
+    }
+    return 2 + bestCost;
+  }
+
+  private static int riceParameter(long sum, int samples) {
+    if (samples <= 0 || sum < samples) {
+      return 0;
+    }
+    var parameter = 63 - Long.numberOfLeadingZeros(sum / samples);
+    return Math.min(MAX_RICE2_PARAMETER, parameter);
+  }
+
+  private static void writeResidual(BitWriter writer, int[] residual, int count, int order, Scratch scratch) {
+    var level = scratch.partitionOrder;
+    var partitions = 1 << level;
+    var wide = false;
+    for (var p = 0; p < partitions; ++p) {
+      wide |= scratch.parameters[p] > MAX_RICE_PARAMETER;
+    }
+    writer.write(wide ? 1 : 0, 2);
+    writer.write(level, 4);
+    var size = count >> level;
+    for (var p = 0; p < partitions; ++p) {
+      var parameter = scratch.parameters[p];
+      writer.write(parameter, wide ? 5 : 4);
+      for (var i = p == 0 ? order : p * size; i < (p + 1) * size; ++i) {
+        var value = residual[i];
+        writer.writeRice((value << 1) ^ (value >> 31), parameter);
+      }
+    }
+  }
+
+  private static int crc8(byte[] data, int length) {
+    var crc = 0;
+    for (var i = 0; i < length; ++i) {
+      crc ^= data[i] & 0xFF;
+      for (var bit = 0; bit < 8; ++bit) {
+        crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+      }
+      crc &= 0xFF;
+    }
+    return crc;
+  }
+
+  private static int[] CRC16_TABLE = new int[256];
+
+  static {
+    for (var i = 0; i < 256; ++i) {
+      var crc = i << 8;
+      for (var bit = 0; bit < 8; ++bit) {
+        crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x8005 : crc << 1;
+      }
+      CRC16_TABLE[i] = crc & 0xFFFF;
+    }
+  }
+
+  private static int crc16(byte[] data, int length) {
+    var crc = 0;
+    for (var i = 0; i < length; ++i) {
+      crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+    }
+    return crc;
+  }
+
+  // Per worker buffers, so encoding a frame allocates nothing but its output
+  private static ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+  private static class Scratch {
+    public int[][] channels = new int[4][BLOCK_SIZE];
+    public int[] residual = new int[BLOCK_SIZE];
+    public double[] windowed = new double[BLOCK_SIZE];
+    public double[] autocorrelation = new double[MAX_LPC_ORDER + 1];
+    public double[][] lpc = new double[MAX_LPC_ORDER + 1][MAX_LPC_ORDER];
+    public int[][] coefficients = new int[MAX_LPC_ORDER + 1][MAX_LPC_ORDER];
+    public int[] shifts = new int[MAX_LPC_ORDER + 1];
+    public long[][] sums = new long[MAX_PARTITION_ORDER + 1][];
+    public int[] candidate = new int[1 << MAX_PARTITION_ORDER];
+    public int[] parameters = new int[1 << MAX_PARTITION_ORDER];
+    public int partitionOrder;
+    public BitWriter writer = new BitWriter(BLOCK_SIZE * 8);
+
+    public Scratch() {
+      for (var level = 0; level <= MAX_PARTITION_ORDER; ++level) {
+        this.sums[level] = new long[1 << level];
+      }
+    }
+
+    public int[] channel(int index) {
+      return this.channels[index];
+    }
+  }
+
+  // Big endian bit packer
+  static class BitWriter {
+    private byte[] buffer;
+    private int length;
+    private long accumulator;
+    private int pending;
+
+    public BitWriter(int capacity) {
+      this.buffer = new byte[capacity];
+    }
+
+    public void reset() {
+      this.length = 0;
+      this.accumulator = 0;
+      this.pending = 0;
+    }
+
+    // Bytes completed so far, call alignToByte first to include everything
+    public byte[] buffer() {
+      return this.buffer;
+    }
+
+    public int length() {
+      return this.length;
+    }
+
+    // count <= 32
+    public void write(long value, int count) {
+      this.accumulator = (this.accumulator << count) | (value & ((1L << count) - 1));
+      this.pending += count;
+      while (this.pending >= 8) {
+        this.pending -= 8;
+        this.put((byte) (this.accumulator >>> this.pending));
+      }
+    }
+
+    public void writeLong(long value, int count) {
+      if (count > 32) {
+        this.write(value >>> 32, count - 32);
+        count = 32;
+      }
+      this.write(value, count);
+    }
+
+    public void writeSigned(int value, int count) {
+      this.write(value, count);
+    }
+
+    public void writeRice(int folded, int parameter) {
+      var quotient = folded >>> parameter;
+      while (quotient >= 32) {
+        this.write(0, 32);
+        quotient -= 32;
+      }
+      this.write(1, quotient + 1);
+      if (parameter > 0) {
+        this.write(folded, parameter);
+      }
+    }
+
+    // Frame numbers use the UTF-8 style variable length code
+    public void writeUtf8(int value) {
+      if (value < 0x80) {
+        this.write(value, 8);
+        return;
+      }
+      var bytes = value < 0x800 ? 2 : value < 0x10000 ? 3 : value < 0x200000 ? 4 : value < 0x4000000 ? 5 : 6;
+      var shift = (bytes - 1) * 6;
+      this.write((0xFF00 >> bytes) | (value >>> shift), 8);
+      while (shift > 0) {
+        shift -= 6;
+        this.write(0x80 | ((value >>> shift) & 0x3F), 8);
+      }
+    }
+
+    public void writeBytes(byte[] bytes) {
+      for (var b : bytes) {
+        this.write(b, 8);
+      }
+    }
+
+    public void alignToByte() {
+      if (this.pending > 0) {
+        this.write(0, 8 - this.pending);
+      }
+    }
+
+    private void put(byte b) {
+      if (this.length == this.buffer.length) {
+        this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+      }
+      this.buffer[this.length++] = b;
+    }
+
+    public byte[] toByteArray() {
+      this.alignToByte();
+      return Arrays.copyOf(this.buffer, this.length);
+    }
+  }
+}
@@ -0,0 +1,203 @@
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Command line entry point that runs a job file without starting the UI.
+ *
+ * Progress is printed to stdout one event per line as space separated
+ * key=value pairs, errors go to stderr. Nothing in here may touch javafx.*
+ * so that scripted runs need neither a display nor the JavaFX startup time.
+ */
+public class Headless {
+  static int EXIT_OK = 0;
+  static int EXIT_FAILED = 1;
+  static int EXIT_INVALID_JOB = 2;
+
+  static boolean isHeadless(String[] args) {
+    return args.length > 0
+        && (args[0].equals("--job") || args[0].equals("--list-devices") || args[0].equals("--find-loops")
+            || args[0].equals("--normalize") || args[0].equals("--normalize-layers"));
+  }
+
+  static int run(String[] args) {
+    if (args[0].equals("--list-devices")) {
+      listDevices();
+      return EXIT_OK;
+    }
+    var normalize = args[0].startsWith("--normalize");
+    if (args.length != 2 && !(normalize && args.length == 3)) {
+      System.err.println("usage: autosampler --job <job file> | --find-loops <directory>"
+          + " | --normalize[-layers] <directory> [<target LUFS>] | --list-devices");
+      return EXIT_INVALID_JOB;
+    }
+    if (args[0].equals("--find-loops")) {
+      return findLoops(Paths.get(args[1]));
+    }
+    if (normalize) {
+      var options = LibraryNormalizer.Options.defaults();
+      options.perLayer = args[0].equals("--normalize-layers");
+      try {
+        options.loudnessLufs = args.length == 3 ? Double.parseDouble(args[2]) : Double.NaN;
+      } catch (NumberFormatException e) {
+        error("invalid loudness target: " + args[2]);
+        return EXIT_INVALID_JOB;
+      }
+      return normalize(Paths.get(args[1]), options);
+    }
+
+    JobFile job;
+    try {
+      job = JobFile.read(Paths.get(args[1]));
+    } catch (NoSuchFileException e) {
+      error("job file not found: " + e.getFile());
+      return EXIT_INVALID_JOB;
+    } catch (IOException e) {
+      error("could not read the job file: " + e.getMessage());
+      return EXIT_INVALID_JOB;
+    }
+
+    // Every instrument is validated before any directory is touched
+    List<AutoSampler.Options> instruments;
+    var plans = new ArrayList<SamplingPlan>();
+    try {
+      var devices = scanDevices();
+      instruments = job.instruments(devices.midiDevices(), devices.audioDevices(), devices.synthesizers());
+      for (var options : instruments) {
+        plans.add(SamplingPlan.compile(options));
+      }
+    } catch (JobFile.InvalidJobException | IllegalArgumentException e) {
+      error(e.getMessage());
+      return EXIT_INVALID_JOB;
+    }
+
+    var total = 0;
+    try {
+      for (var i = 0; i < instruments.size(); ++i) {
+        OutputDirectory.prepare(instruments.get(i), plans.get(i), false);
+        total += plans.get(i).size();
+      }
+    } catch (IOException e) {
+      error(e.toString());
+      return EXIT_FAILED;
+    }
+    System.out.println(String.format(Locale.ROOT, "event=start instruments=%d takes=%d", instruments.size(), total));
+
+    var executor = Util.newTaskExecutor("sampling");
+    var events = new SessionEvents(executor);
+    var logs = new ArrayList<EventLog>();
+    logs.add(EventLog.console());
+    events.subscribe(logs.get(0));
+    var exit = EXIT_OK;
+    try {
+      for (var instrument = 0; instrument < instruments.size(); ++instrument) {
+        var log = EventLog.open(instruments.get(instrument).outputDirectory, instrument);
+        events.subscribe(log);
+        logs.add(log);
+      }
+      AutoSampler.sampleAll(instruments, executor, events);
+    } catch (Exception e) {
+      error(e.toString());
+      exit = EXIT_FAILED;
+    }
+
+    // The console and the logs are written asynchronously, let them catch up before exiting
+    events.close();
+    try {
+      for (var log : logs) {
+        log.await();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    executor.shutdown();
+    return exit;
+  }
+
+  private static int findLoops(Path directory) {
+    var started = System.nanoTime();
+    List<LoopFinder.Result> results;
+    try {
+      results = LoopFinder.processDirectory(directory, LoopFinder.Options.defaults(), result -> {
+        String line;
+        if (result.error != null) {
+          line = String.format(Locale.ROOT, "event=error file=%s message=\"%s\"", result.path.getFileName(), result.error);
+        } else if (result.loop == null) {
+          line = String.format(Locale.ROOT, "event=no-loop file=%s", result.path.getFileName());
+        } else {
+          line = String.format(Locale.ROOT, "event=loop file=%s start=%d end=%d correlation=%.3f", result.path.getFileName(),
+              result.loop.start, result.loop.end, result.loop.correlation);
+        }
+        synchronized (System.out) {
+          System.out.println(line);
+        }
+      });
+    } catch (IOException e) {
+      error(e.toString());
+      return EXIT_FAILED;
+    }
+    var looped = results.stream().filter(result -> result.loop != null).count();
+    var failed = results.stream().filter(result -> result.error != null).count();
+    var elapsed = Duration.ofNanos(System.nanoTime() - started);
+    System.out.println(String.format(Locale.ROOT, "event=finished files=%d loops=%d errors=%d seconds=%d", results.size(), looped,
+        failed, elapsed.toSeconds()));
+    return failed > 0 ? EXIT_FAILED : EXIT_OK;
+  }
+
+  private static int normalize(Path directory, LibraryNormalizer.Options options) {
+    var started = System.nanoTime();
+    List<LibraryNormalizer.Result> results;
+    try {
+      results = LibraryNormalizer.processDirectory(directory, options, result -> {
+        String line;
+        if (result.error != null) {
+          line = String.format(Locale.ROOT, "event=error file=%s message=\"%s\"", result.path.getFileName(), result.error);
+        } else {
+          line = String.format(Locale.ROOT, "event=normalized file=%s velocity=%d peak=%.2f rms=%.2f lufs=%.2f gain=%.2f",
+              result.path.getFileName(), result.velocity, result.peakDb, result.rmsDb, result.loudnessLufs,
+              result.gainDb);
+        }
+        synchronized (System.out) {
+          System.out.println(line);
+        }
+      });
+    } catch (IOException e) {
+      error(e.toString());
+      return EXIT_FAILED;
+    }
+    var failed = results.stream().filter(result -> result.error != null).count();
+    var elapsed = Duration.ofNanos(System.nanoTime() - started);
+    System.out.println(String.format(Locale.ROOT, "event=finished files=%d errors=%d seconds=%d", results.size(), failed,
+        elapsed.toSeconds()));
+    return failed > 0 ? EXIT_FAILED : EXIT_OK;
+  }
+
+  private static void listDevices() {
+    var devices = scanDevices();
+    for (var device : devices.midiDevices()) {
+      System.out.println("midi " + device.getName());
+    }
+    for (var device : devices.audioDevices()) {
+      System.out.println("audio " + device.getName());
+    }
+    for (var device : devices.synthesizers()) {
+      System.out.println("synth " + device.getName());
+    }
+  }
+
+  // One parallel scan, there is nothing to hot-plug during a batch run
+  private static DeviceRegistry.Snapshot scanDevices() {
+    try (var registry = new DeviceRegistry()) {
+      return registry.refresh().join();
+    }
+  }
+
+  private static void error(String message) {
+    System.err.println("event=error message=\"" + message + "\"");
+  }
+}
@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.sampled.Mixer;
+
+/**
+ * Sampling job description for headless runs, stored as a properties file.
+ *
+ * <pre>
+ * midi.device = MIDI interface name (or a unique part of it)
+ * audio.device = audio input name (or a unique part of it)
+ * notes.start = C3
+ * notes.end = C6
+ * notes.interval = 6
+ * velocities = 40, 80, 127
+ * round.robins = 1
+ * sustain = 1000
+ * max.length = 10000
+ * output.directory = samples
+ * naming = sample_{note}_{velocity}.wav
+ * </pre>
+ *
+ * Optional keys are capture.rate, capture.channels, capture.format,
+ * output.format, output.container (WAV or FLAC), tail.threshold, tail.hold,
+ * calibrate, normalize, loops (find a sustain loop for every take),
+ * pitch.check (record takes again that are more than pitch.tolerance cents
+ * off, up to retakes times, and store the fine tune of the others unless
+ * pitch.finetune is false), resume (skip takes an interrupted run of the
+ * same job already finished) and render. With render = true the notes are
+ * rendered faster than real time on the software synthesizer named by
+ * midi.device (the default one if it is missing) and audio.device is not
+ * needed, render.soundbank loads an SF2 or DLS file and render.bank and
+ * render.program select its instrument. Several instruments can be sampled at once by
+ * listing their names in instruments and prefixing keys with the name
+ * (synth1.midi.device = ...), unprefixed keys act as defaults for every
+ * instrument.
+ */
+public class JobFile {
+  public static class InvalidJobException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public InvalidJobException(String message) {
+      super(message);
+    }
+  }
+
+  private Properties properties;
+  private Path baseDirectory;
+
+  private JobFile(Properties _properties, Path _baseDirectory) {
+    this.properties = _properties;
+    this.baseDirectory = _baseDirectory;
+  }
+
+  public static JobFile read(Path path) throws IOException {
+    var properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(path)) {
+      properties.load(reader);
+    }
+    var parent = path.toAbsolutePath().getParent();
+    return new JobFile(properties, parent);
+  }
+
+  public List<String> instrumentNames() {
+    var names = new ArrayList<String>();
+    var listed = this.properties.getProperty("instruments");
+    if (listed == null || listed.isBlank()) {
+      names.add("");
+      return names;
+    }
+    for (var name : listed.split(",")) {
+      if (!name.isBlank()) {
+        names.add(name.trim());
+      }
+    }
+    return names;
+  }
+
+  public List<AutoSampler.Options> instruments(MidiDevice.Info[] midiDevices, Mixer.Info[] audioDevices,
+      MidiDevice.Info[] synthesizers) throws InvalidJobException {
+    var instruments = new ArrayList<AutoSampler.Options>();
+    for (var name : this.instrumentNames()) {
+      instruments.add(this.instrument(name, midiDevices, audioDevices, synthesizers));
+    }
+    return instruments;
+  }
+
+  private AutoSampler.Options instrument(String name, MidiDevice.Info[] midiDevices, Mixer.Info[] audioDevices,
+      MidiDevice.Info[] synthesizers) throws InvalidJobException {
+    try {
+      var render = Boolean.parseBoolean(this.get(name, "render", "false"));
+      MidiDevice.Info midiDevice;
+      Mixer.Info audioDevice = null;
+      if (render) {
+        var synthesizer = this.get(name, "midi.device", "");
+        midiDevice = synthesizer.isEmpty() ? null : match(synthesizers, synthesizer, "software synthesizer");
+      } else {
+        midiDevice = match(midiDevices, this.require(name, "midi.device"), "MIDI device");
+        audioDevice = match(audioDevices, this.require(name, "audio.device"), "audio input");
+      }
+      var naming = this.get(name, "naming", "sample_{note}_{velocity}.wav");
+      var output = this.baseDirectory.resolve(this.require(name, "output.directory"));
+
+      var options = new AutoSampler.Options(MIDIUtil.toMIDI(this.require(name, "notes.start")),
+          MIDIUtil.toMIDI(this.require(name, "notes.end")),
+          Integer.parseInt(this.get(name, "notes.interval", "1")),
+          Integer.parseInt(this.get(name, "max.length", "10000")),
+          Integer.parseInt(this.get(name, "sustain", "1000")),
+          output,
+          (note, velocity) -> naming.replace("{note}", Integer.toString(note))
+              .replace("{name}", MIDIUtil.fromMidi(note))
+              .replace("{velocity}", Integer.toString(velocity)),
+          audioDevice, midiDevice);
+      options.velocities = SamplingPlan.parseVelocities(this.get(name, "velocities", "127"));
+      options.roundRobins = Integer.parseInt(this.get(name, "round.robins", "1"));
+
+      var defaults = CaptureFormat.defaults();
+      options.captureFormat = new CaptureFormat(
+          Integer.parseInt(this.get(name, "capture.rate", Integer.toString(defaults.sampleRate))),
+          Integer.parseInt(this.get(name, "capture.channels", Integer.toString(defaults.channels))),
+          SampleFormat.valueOf(this.get(name, "capture.format", defaults.sampleFormat.name())));
+      options.outputFormat = SampleFormat.valueOf(this.get(name, "output.format", options.outputFormat.name()));
+      options.container = ContainerFormat.valueOf(this.get(name, "output.container", options.container.name()));
+      // Rejects combinations the container cannot store
+      options.container.encoder(options.outputFormat);
+
+      var tail = TailDetector.Options.defaults();
+      options.tail = new TailDetector.Options(
+          Double.parseDouble(this.get(name, "tail.threshold", Double.toString(tail.thresholdDb))),
+          Integer.parseInt(this.get(name, "tail.hold", Integer.toString(tail.holdMillis))));
+      options.calibrateLatency = Boolean.parseBoolean(this.get(name, "calibrate", "true"));
+      options.resume = Boolean.parseBoolean(this.get(name, "resume", "false"));
+      if (Boolean.parseBoolean(this.get(name, "normalize", "false"))) {
+        options.processing.add(TakeProcessor.normalize(-1));
+      }
+      if (Boolean.parseBoolean(this.get(name, "loops", "false"))) {
+        options.processing.add(LoopFinder.stage(LoopFinder.Options.defaults()));
+      }
+      if (Boolean.parseBoolean(this.get(name, "pitch.check", "false"))) {
+        var pitch = PitchDetector.Options.defaults();
+        options.processing.add(PitchDetector.stage(new PitchDetector.Options(
+            Double.parseDouble(this.get(name, "pitch.tolerance", Double.toString(pitch.toleranceCents))),
+            Boolean.parseBoolean(this.get(name, "pitch.finetune", Boolean.toString(pitch.writeFineTune))))));
+      }
+      if (render) {
+        options.render = new SynthSource.Options(midiDevice);
+        var soundbank = this.get(name, "render.soundbank", "");
+        options.render.soundbank = soundbank.isEmpty() ? null : this.baseDirectory.resolve(soundbank);
+        options.render.bank = Integer.parseInt(this.get(name, "render.bank", "0"));
+        options.render.program = Integer.parseInt(this.get(name, "render.program", "0"));
+      }
+      options.maxRetakes = Integer.parseInt(this.get(name, "retakes", Integer.toString(options.maxRetakes)));
+
+      // Fail on bad ranges before any device is opened
+      SamplingPlan.compile(options);
+      return options;
+    } catch (IllegalArgumentException e) {
+      throw new InvalidJobException(describe(name) + e.getMessage());
+    }
+  }
+
+  private String get(String instrument, String key, String fallback) {
+    if (!instrument.isEmpty()) {
+      var value = this.properties.getProperty(instrument + "." + key);
+      if (value != null) {
+        return value.trim();
+      }
+    }
+    var value = this.properties.getProperty(key);
+    return value == null ? fallback : value.trim();
+  }
+
+  private String require(String instrument, String key) throws InvalidJobException {
+    var value = this.get(instrument, key, null);
+    if (value == null || value.isEmpty()) {
+      throw new InvalidJobException(describe(instrument) + "missing " + key);
+    }
+    return value;
+  }
+
+  private static String describe(String instrument) {
+    return instrument.isEmpty() ? "" : instrument + ": ";
+  }
+
+  // Exact name match first, otherwise a unique case insensitive substring
+  static <T> T match(T[] devices, String name, String kind) throws InvalidJobException {
+    for (var device : devices) {
+      if (deviceName(device).equals(name)) {
+        return device;
+      }
+    }
+    T found = null;
+    var needle = name.toLowerCase();
+    for (var device : devices) {
+      if (deviceName(device).toLowerCase().contains(needle)) {
+        if (found != null) {
+          throw new InvalidJobException("Ambiguous " + kind + " '" + name + "', matches " + deviceName(found)
+              + " and " + deviceName(device));
+        }
+        found = device;
+      }
+    }
+    if (found == null) {
+      throw new InvalidJobException("No " + kind + " matches '" + name + "'");
+    }
+    return found;
+  }
+
+  private static String deviceName(Object device) {
+    if (device instanceof MidiDevice.Info) {
+      return ((MidiDevice.Info) device).getName();
+    }
+    return ((Mixer.Info) device).getName();
+  }
+}
@@ -0,0 +1,55 @@
+import java.util.Arrays;
+
+/**
+ * Measures the delay between sending a note on and its sound arriving at the
+ * audio input, by recording a few probe notes and running the onset detector
+ * on them.
+ */
+public class LatencyCalibrator {
+  private static int PROBE_SUSTAIN = 150;
+  private static int PROBE_MAX_LENGTH = 3000;
+
+  public static class Result {
+    // Median latency of all probes that produced sound (frames)
+    public int latencyFrames;
+    public int minimumFrames;
+    public int maximumFrames;
+    public int probes;
+    public int silentProbes;
+
+    public double latencyMillis(float sampleRate) {
+      return this.latencyFrames * 1000.0 / sampleRate;
+    }
+  }
+
+  /**
+   * Records probes notes and stores the measured latency in the session.
+   * Returns null (and leaves the session uncalibrated) if no probe arrived.
+   */
+  public static Result calibrate(CaptureSession session, int note, int velocity, int probes) throws Exception {
+    var latencies = new int[probes];
+    var measured = 0;
+    for (var i = 0; i < probes; ++i) {
+      var take = session.record(note, velocity, PROBE_SUSTAIN, PROBE_MAX_LENGTH);
+      var samples = new float[take.length()];
+      PcmCodec.decode(take.format, take.data, 0, samples, take.length());
+      var onset = OnsetDetector.detect(samples, take.frames, take.channels(), take.sampleRate(), take.noteOnFrame);
+      if (onset != OnsetDetector.NOT_FOUND) {
+        latencies[measured++] = onset - take.noteOnFrame;
+      }
+    }
+
+    if (measured == 0) {
+      return null;
+    }
+    Arrays.sort(latencies, 0, measured);
+    var result = new Result();
+    result.latencyFrames = latencies[measured / 2];
+    result.minimumFrames = latencies[0];
+    result.maximumFrames = latencies[measured - 1];
+    result.probes = probes;
+    result.silentProbes = probes - measured;
+    session.setLatencyFrames(result.latencyFrames);
+    return result;
+  }
+}
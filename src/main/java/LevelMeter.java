@@ -0,0 +1,136 @@
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Metering tap on the capture stream.
+ *
+ * The capture writer thread folds every frame into short blocks of min, max
+ * and RMS level and publishes each finished block into a fixed history. The
+ * UI polls blocks() and copy() whenever it likes, neither side ever waits on
+ * the other and nothing is allocated once the meter has been started.
+ */
+public class LevelMeter {
+  private static int BLOCK_MILLIS = 5;
+  private static int SCRATCH_FRAMES = 256;
+
+  // Samples at or above this are counted as clipped (about -0.01dBFS)
+  private static float CLIP_LEVEL = 0.999f;
+
+  // Blocks kept for readers, a power of two (about 10s at 5ms blocks)
+  private static int HISTORY = 2048;
+
+  private float[] mins = new float[HISTORY];
+  private float[] maxs = new float[HISTORY];
+  private float[] rms = new float[HISTORY];
+
+  // Number of published blocks, written by the capture thread only
+  private volatile long blocks;
+  private volatile long clips;
+  private volatile long takeStart;
+
+  // Writer side, only touched by the capture thread
+  private AudioFormat format;
+  private int channels;
+  private float[] scratch;
+  private int blockFrames;
+  private int blockPosition;
+  private float blockMin;
+  private float blockMax;
+  private double blockSquares;
+
+  // Called by the capture session before its writer thread starts
+  void start(AudioFormat _format) {
+    this.format = _format;
+    this.channels = _format.getChannels();
+    this.scratch = new float[SCRATCH_FRAMES * this.channels];
+    this.blockFrames = Math.max(1, (int) (_format.getSampleRate() * BLOCK_MILLIS / 1000));
+    this.blockPosition = 0;
+    this.blockMin = 0;
+    this.blockMax = 0;
+    this.blockSquares = 0;
+  }
+
+  // Capture thread, len is a multiple of the frame size
+  void process(byte[] data, int offset, int length) {
+    var frameSize = this.format.getFrameSize();
+    var frames = length / frameSize;
+    var clipped = 0;
+    for (var done = 0; done < frames;) {
+      var count = Math.min(SCRATCH_FRAMES, frames - done);
+      PcmCodec.decode(this.format, data, offset + done * frameSize, this.scratch, count * this.channels);
+      for (var frame = 0; frame < count; ++frame) {
+        for (var channel = 0; channel < this.channels; ++channel) {
+          var sample = this.scratch[frame * this.channels + channel];
+          this.blockMin = Math.min(this.blockMin, sample);
+          this.blockMax = Math.max(this.blockMax, sample);
+          this.blockSquares += sample * sample;
+          if (Math.abs(sample) >= CLIP_LEVEL) {
+            clipped++;
+          }
+        }
+        if (++this.blockPosition == this.blockFrames) {
+          this.publish();
+        }
+      }
+      done += count;
+    }
+    if (clipped > 0) {
+      this.clips += clipped;
+    }
+  }
+
+  private void publish() {
+    var block = this.blocks;
+    var slot = (int) (block & (HISTORY - 1));
+    this.mins[slot] = this.blockMin;
+    this.maxs[slot] = this.blockMax;
+    this.rms[slot] = (float) Math.sqrt(this.blockSquares / (this.blockFrames * this.channels));
+    // The volatile write makes the slot visible to readers of blocks
+    this.blocks = block + 1;
+    this.blockPosition = 0;
+    this.blockMin = 0;
+    this.blockMax = 0;
+    this.blockSquares = 0;
+  }
+
+  // Remembers where the current take starts so the UI can show just that
+  void markTake() {
+    this.takeStart = this.blocks;
+  }
+
+  public long blocks() {
+    return this.blocks;
+  }
+
+  // Block at which the current (or last) take started
+  public long takeStart() {
+    return this.takeStart;
+  }
+
+  // Total number of clipped samples since the meter was created
+  public long clips() {
+    return this.clips;
+  }
+
+  public static int history() {
+    return HISTORY;
+  }
+
+  /**
+   * Copies the published blocks from index from onwards, as many as fit in
+   * the arrays, and returns how many were copied. Blocks that have fallen
+   * out of the history are skipped, returning fewer blocks.
+   */
+  public int copy(long from, float[] minOut, float[] maxOut, float[] rmsOut) {
+    var end = this.blocks;
+    // Keep clear of the slots the writer may be filling while we copy
+    from = Math.max(from, end - HISTORY / 2);
+    var count = (int) Math.max(0, Math.min(end - from, minOut.length));
+    for (var i = 0; i < count; ++i) {
+      var slot = (int) ((from + i) & (HISTORY - 1));
+      minOut[i] = this.mins[slot];
+      maxOut[i] = this.maxs[slot];
+      rmsOut[i] = this.rms[slot];
+    }
+    return count;
+  }
+}
@@ -0,0 +1,156 @@
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Color;
+
+/**
+ * Peak meter with clip indicator and a scrolling waveform of the current
+ * take, drawn from a {@link LevelMeter}.
+ *
+ * update is meant to be called once per frame on the FX thread. It copies the
+ * blocks published since the last frame into buffers allocated up front and
+ * only repaints when there is something new. Clicking the view resets the
+ * clip indicator.
+ */
+public class LevelMeterView {
+  private static double METER_WIDTH = 14;
+  private static double CLIP_HEIGHT = 6;
+  private static double GAP = 6;
+
+  // Lowest level shown on the meter (dBFS)
+  private static double FLOOR_DB = -60;
+
+  // Peak hold is kept for this long (ns) and then falls at PEAK_FALL_DB per second
+  private static long PEAK_HOLD_NANOS = 1_500_000_000L;
+  private static double PEAK_FALL_DB = 20;
+
+  private static Color BACKGROUND = Color.valueOf("#1c1c1c");
+  private static Color CENTER_LINE = Color.valueOf("#3a3a3c");
+  private static Color WAVE_PEAK = Color.valueOf("#7a9ab8");
+  private static Color WAVE_RMS = Color.valueOf("#b8d4ec");
+  private static Color METER_LOW = Color.valueOf("#5cb86a");
+  private static Color METER_HIGH = Color.valueOf("#e8c14a");
+  private static Color PEAK_HOLD = Color.valueOf("#eaeaec");
+  private static Color CLIP_OFF = Color.valueOf("#3a2222");
+  private static Color CLIP_ON = Color.valueOf("#ff3b30");
+
+  private LevelMeter meter;
+  private Canvas canvas;
+  private double width;
+  private double height;
+  private int waveformBlocks;
+
+  private float[] mins;
+  private float[] maxs;
+  private float[] rms;
+
+  private long shownBlocks = -1;
+  private long shownTake = -1;
+  private long acknowledgedClips;
+  private double peakDb = FLOOR_DB;
+  private double heldDb = FLOOR_DB;
+  private long heldAt;
+
+  public LevelMeterView(LevelMeter _meter, double _width, double _height) {
+    this.meter = _meter;
+    this.width = _width;
+    this.height = _height;
+    this.canvas = new Canvas(_width, _height);
+    this.waveformBlocks = (int) Math.max(1, Math.min(LevelMeter.history() / 2, _width - METER_WIDTH - GAP));
+    this.mins = new float[this.waveformBlocks];
+    this.maxs = new float[this.waveformBlocks];
+    this.rms = new float[this.waveformBlocks];
+    this.canvas.setOnMouseClicked(e -> {
+      this.acknowledgedClips = this.meter.clips();
+      this.shownBlocks = -1;
+    });
+    this.draw(0);
+  }
+
+  public Canvas getCanvas() {
+    return this.canvas;
+  }
+
+  private static double toDb(double level) {
+    return level <= 0 ? FLOOR_DB : Math.max(FLOOR_DB, 20 * Math.log10(level));
+  }
+
+  // FX thread, now is the frame time from an AnimationTimer
+  public void update(long now) {
+    var blocks = this.meter.blocks();
+    var take = this.meter.takeStart();
+    var falling = this.heldDb > FLOOR_DB && now - this.heldAt > PEAK_HOLD_NANOS;
+    if (blocks == this.shownBlocks && take == this.shownTake && !falling) {
+      return;
+    }
+
+    // Peak of everything published since the last frame
+    if (blocks != this.shownBlocks) {
+      var fresh = (int) Math.min(this.waveformBlocks, Math.max(1, blocks - Math.max(0, this.shownBlocks)));
+      var copied = this.meter.copy(blocks - fresh, this.mins, this.maxs, this.rms);
+      var peak = 0f;
+      for (var i = 0; i < copied; ++i) {
+        peak = Math.max(peak, Math.max(-this.mins[i], this.maxs[i]));
+      }
+      this.peakDb = toDb(peak);
+    }
+    if (this.peakDb >= this.heldDb) {
+      this.heldDb = this.peakDb;
+      this.heldAt = now;
+    } else if (falling) {
+      var fall = PEAK_FALL_DB * (now - this.heldAt - PEAK_HOLD_NANOS) / 1e9;
+      this.heldDb = Math.max(this.peakDb, this.heldDb - fall);
+      this.heldAt = now - PEAK_HOLD_NANOS;
+    }
+    this.shownBlocks = blocks;
+    this.shownTake = take;
+
+    // Waveform of the current take, scrolling once it is wider than the view
+    var from = Math.max(take, blocks - this.waveformBlocks);
+    var count = this.meter.copy(from, this.mins, this.maxs, this.rms);
+    this.draw(count);
+  }
+
+  private void draw(int count) {
+    var ctx = this.canvas.getGraphicsContext2D();
+    ctx.setImageSmoothing(false);
+    ctx.setFill(BACKGROUND);
+    ctx.fillRect(0, 0, this.width, this.height);
+    this.drawWaveform(ctx, count);
+    this.drawMeter(ctx);
+  }
+
+  private void drawWaveform(GraphicsContext ctx, int count) {
+    var middle = this.height / 2;
+    var scale = this.height / 2 - 1;
+    ctx.setFill(CENTER_LINE);
+    ctx.fillRect(0, middle, this.waveformBlocks, 1);
+    for (var i = 0; i < count; ++i) {
+      var top = middle - this.maxs[i] * scale;
+      var bottom = middle - this.mins[i] * scale;
+      ctx.setFill(WAVE_PEAK);
+      ctx.fillRect(i, top, 1, Math.max(1, bottom - top));
+      var level = this.rms[i] * scale;
+      ctx.setFill(WAVE_RMS);
+      ctx.fillRect(i, middle - level, 1, Math.max(1, level * 2));
+    }
+  }
+
+  private void drawMeter(GraphicsContext ctx) {
+    var x = this.width - METER_WIDTH;
+    var top = CLIP_HEIGHT + 2;
+    var range = this.height - top;
+
+    ctx.setFill(this.meter.clips() > this.acknowledgedClips ? CLIP_ON : CLIP_OFF);
+    ctx.fillRect(x, 0, METER_WIDTH, CLIP_HEIGHT);
+
+    ctx.setFill(CENTER_LINE);
+    ctx.fillRect(x, top, METER_WIDTH, range);
+    var level = range * (this.peakDb - FLOOR_DB) / -FLOOR_DB;
+    ctx.setFill(this.peakDb > -6 ? METER_HIGH : METER_LOW);
+    ctx.fillRect(x, this.height - level, METER_WIDTH, level);
+
+    var held = this.height - range * (this.heldDb - FLOOR_DB) / -FLOOR_DB;
+    ctx.setFill(PEAK_HOLD);
+    ctx.fillRect(x, Math.min(this.height - 1, held), METER_WIDTH, 1);
+  }
+}
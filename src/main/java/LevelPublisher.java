@@ -0,0 +1,79 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes the level of a {@link LevelMeter} as session events at a fixed
+ * rate, from a thread of its own.
+ *
+ * The capture writer only feeds the meter, it never publishes, waits or
+ * allocates for the events. This thread reads the blocks the meter published
+ * since the previous poll and turns them into one
+ * {@link SessionEvent.Level}.
+ */
+public class LevelPublisher implements AutoCloseable {
+  // About the rate a level display refreshes at
+  private static long INTERVAL_NANOS = 100_000_000L;
+
+  private LevelMeter meter;
+  private SessionEvents events;
+  private int instrument;
+  private Object key;
+  private Thread thread;
+  private volatile boolean running = true;
+
+  // Poller only
+  private long next;
+  private float[] mins = new float[LevelMeter.history() / 2];
+  private float[] maxs = new float[LevelMeter.history() / 2];
+  private float[] rms = new float[LevelMeter.history() / 2];
+
+  public LevelPublisher(LevelMeter _meter, SessionEvents _events, int _instrument) {
+    this.meter = _meter;
+    this.events = _events;
+    this.instrument = _instrument;
+    this.key = SessionEvent.Level.key(_instrument);
+    this.next = _meter.blocks();
+    this.thread = new Thread(this::run, "levels-" + _instrument);
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  private void run() {
+    while (this.running) {
+      LockSupport.parkNanos(this, INTERVAL_NANOS);
+      this.poll();
+    }
+  }
+
+  private void poll() {
+    var end = this.meter.blocks();
+    var from = Math.max(this.next, end - this.mins.length);
+    var count = this.meter.copy(from, this.mins, this.maxs, this.rms);
+    this.next = from + count;
+    if (count == 0) {
+      return;
+    }
+    var peak = 0.0;
+    var squares = 0.0;
+    for (var i = 0; i < count; ++i) {
+      peak = Math.max(peak, Math.max(-this.mins[i], this.maxs[i]));
+      squares += (double) this.rms[i] * this.rms[i];
+    }
+    this.events.publish(new SessionEvent.Level(this.instrument, toDb(peak), toDb(Math.sqrt(squares / count)),
+        this.key));
+  }
+
+  private static double toDb(double value) {
+    return value <= 0 ? Double.NEGATIVE_INFINITY : 20 * Math.log10(value);
+  }
+
+  @Override
+  public void close() {
+    this.running = false;
+    LockSupport.unpark(this.thread);
+    try {
+      this.thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,354 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Brings the levels of a finished library in line.
+ *
+ * The first pass measures the sample peak, RMS and integrated loudness
+ * (ITU-R BS.1770, K-weighted and gated) of every file. The second pass
+ * applies one gain to the whole library, or one per velocity layer, and
+ * writes it back in place with TPDF dither. A layer never gets more gain than
+ * a louder one, so the spacing between layers can only grow and the soft
+ * layers stay soft. Per layer mostly helps when a soft layer has less
+ * headroom than the loud ones.
+ *
+ * Files are memory mapped and streamed in short chunks through per-thread
+ * buffers, loudness gating works on fixed size histograms, so the heap does
+ * not grow with the length or the number of files. Both passes run over the
+ * files in parallel.
+ */
+public class LibraryNormalizer {
+  public static class Options {
+    // Highest sample peak after normalizing (dBFS)
+    public double peakDb;
+
+    // Integrated loudness to aim for (LUFS), NaN to normalize the peak only.
+    // The peak limit above still applies, so quiet targets are the safe ones
+    public double loudnessLufs;
+
+    // One gain per velocity layer (from the inst chunk) instead of one for everything,
+    // each one at most the gain of the layers above it
+    public boolean perLayer;
+
+    public Options(double peakDb, double loudnessLufs, boolean perLayer) {
+      this.peakDb = peakDb;
+      this.loudnessLufs = loudnessLufs;
+      this.perLayer = perLayer;
+    }
+
+    public static Options defaults() {
+      return new Options(-1, Double.NaN, false);
+    }
+  }
+
+  public static class Result {
+    public Path path;
+
+    // Velocity layer, -1 if the file does not say
+    public int velocity = -1;
+
+    // Before normalizing
+    public double peakDb = Double.NEGATIVE_INFINITY;
+    public double rmsDb = Double.NEGATIVE_INFINITY;
+    public double loudnessLufs = Double.NEGATIVE_INFINITY;
+
+    // Applied in the second pass, 0 if the file was left alone
+    public double gainDb;
+
+    public String error;
+
+    public Result(Path _path) {
+      this.path = _path;
+    }
+  }
+
+  // Chunk streamed through the mapping at a time
+  private static int CHUNK_FRAMES = 8192;
+
+  // Gains smaller than this are not worth a requantization (dB)
+  private static double MIN_GAIN_DB = 0.01;
+
+  // BS.1770 gating: 400 ms blocks every 100 ms
+  private static int BLOCK_STEPS = 4;
+  private static double ABSOLUTE_GATE_LUFS = -70;
+  private static double RELATIVE_GATE_LU = 10;
+
+  /**
+   * Loudness of the gating blocks, bucketed in steps of 0.1 LU. Energies are
+   * summed exactly, only the gate decisions are rounded to the bucket.
+   */
+  private static class Histogram {
+    private static double STEP = 0.1;
+    private static double TOP_LUFS = 10;
+    private static int BUCKETS = (int) ((TOP_LUFS - ABSOLUTE_GATE_LUFS) / STEP);
+
+    private long[] counts = new long[BUCKETS];
+    private double[] energies = new double[BUCKETS];
+
+    public void add(double energy) {
+      var lufs = loudness(energy);
+      if (!(lufs > ABSOLUTE_GATE_LUFS)) {
+        return;
+      }
+      var bucket = (int) Math.min(BUCKETS - 1, (lufs - ABSOLUTE_GATE_LUFS) / STEP);
+      this.counts[bucket] += 1;
+      this.energies[bucket] += energy;
+    }
+
+    public void clear() {
+      Arrays.fill(this.counts, 0);
+      Arrays.fill(this.energies, 0);
+    }
+
+    public void add(Histogram other) {
+      for (var i = 0; i < BUCKETS; ++i) {
+        this.counts[i] += other.counts[i];
+        this.energies[i] += other.energies[i];
+      }
+    }
+
+    // Mean energy of the blocks from bucket on
+    private double mean(int from) {
+      var count = 0L;
+      var energy = 0.0;
+      for (var i = from; i < BUCKETS; ++i) {
+        count += this.counts[i];
+        energy += this.energies[i];
+      }
+      return count > 0 ? energy / count : 0;
+    }
+
+    public double integrated() {
+      var gate = loudness(this.mean(0)) - RELATIVE_GATE_LU;
+      var from = (int) Math.max(0, Math.ceil((gate - ABSOLUTE_GATE_LUFS) / STEP));
+      return loudness(this.mean(Math.min(from, BUCKETS)));
+    }
+  }
+
+  private static double loudness(double energy) {
+    return -0.691 + 10 * Math.log10(energy);
+  }
+
+  private static double toDb(double gain) {
+    return 20 * Math.log10(gain);
+  }
+
+  /**
+   * Biquads of the K-weighting pre-filter (high shelf, then high pass),
+   * derived for the sample rate as in BS.1770 and its reference
+   * implementations.
+   */
+  private static class KWeighting {
+    private double[] b = new double[6];
+    private double[] a = new double[4];
+
+    // Two filter states (z1, z2) per stage and channel
+    private double[] state;
+
+    public KWeighting(float sampleRate, int channels) {
+      var k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+      var q = 0.7071752369554196;
+      var vh = Math.pow(10, 3.999843853973347 / 20);
+      var vb = Math.pow(vh, 0.4996667741545416);
+      var a0 = 1 + k / q + k * k;
+      this.b[0] = (vh + vb * k / q + k * k) / a0;
+      this.b[1] = 2 * (k * k - vh) / a0;
+      this.b[2] = (vh - vb * k / q + k * k) / a0;
+      this.a[0] = 2 * (k * k - 1) / a0;
+      this.a[1] = (1 - k / q + k * k) / a0;
+
+      k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+      q = 0.5003270373238773;
+      a0 = 1 + k / q + k * k;
+      this.b[3] = 1;
+      this.b[4] = -2;
+      this.b[5] = 1;
+      this.a[2] = 2 * (k * k - 1) / a0;
+      this.a[3] = (1 - k / q + k * k) / a0;
+      this.state = new double[channels * 4];
+    }
+
+    // Filters one sample of a channel, transposed direct form II
+    public double process(int channel, double x) {
+      var s = this.state;
+      var i = channel * 4;
+      var y = this.b[0] * x + s[i];
+      s[i] = this.b[1] * x - this.a[0] * y + s[i + 1];
+      s[i + 1] = this.b[2] * x - this.a[1] * y;
+      var z = this.b[3] * y + s[i + 2];
+      s[i + 2] = this.b[4] * y - this.a[2] * z + s[i + 3];
+      s[i + 3] = this.b[5] * y - this.a[3] * z;
+      return z;
+    }
+  }
+
+  private static class Scratch {
+    public float[] samples = new float[0];
+    public byte[] bytes = new byte[0];
+    public Histogram blocks = new Histogram();
+
+    public void ensure(AudioFormat format) {
+      if (this.samples.length < CHUNK_FRAMES * format.getChannels()) {
+        this.samples = new float[CHUNK_FRAMES * format.getChannels()];
+      }
+      if (this.bytes.length < CHUNK_FRAMES * format.getFrameSize()) {
+        this.bytes = new byte[CHUNK_FRAMES * format.getFrameSize()];
+      }
+    }
+  }
+
+  private static ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+  /**
+   * Normalizes every WAV file in the directory. onFile is called from the
+   * worker threads once a file has been written, the results come back in
+   * file name order.
+   */
+  public static List<Result> processDirectory(Path directory, Options options, Consumer<Result> onFile)
+      throws IOException {
+    List<Path> files;
+    try (var listing = Files.list(directory)) {
+      files = listing.filter(path -> path.getFileName().toString().toLowerCase().endsWith(".wav")).sorted()
+          .collect(Collectors.toList());
+    }
+    // Gating blocks of every group, a file's are merged in as soon as it is measured
+    var groups = new ConcurrentHashMap<Integer, Histogram>();
+    var results = files.parallelStream().map(path -> measure(path, options, groups)).collect(Collectors.toList());
+
+    var peaks = new HashMap<Integer, Double>();
+    for (var result : results) {
+      if (result.error == null) {
+        peaks.merge(options.perLayer ? result.velocity : 0, result.peakDb, Math::max);
+      }
+    }
+    var gains = new HashMap<Integer, Double>();
+    for (var group : peaks.keySet()) {
+      var gain = options.peakDb - peaks.get(group);
+      if (!Double.isNaN(options.loudnessLufs)) {
+        gain = Math.min(gain, options.loudnessLufs - groups.get(group).integrated());
+      }
+      gains.put(group, Double.isFinite(gain) ? gain : 0);
+    }
+    // Softest layer last, each is held to the gain of the layers above it
+    var layers = gains.keySet().stream().sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+    var limit = Double.POSITIVE_INFINITY;
+    for (var layer : layers) {
+      limit = Math.min(limit, gains.get(layer));
+      gains.put(layer, limit);
+    }
+
+    results.parallelStream().forEach(result -> {
+      if (result.error == null) {
+        apply(result, gains.get(options.perLayer ? result.velocity : 0));
+      }
+      onFile.accept(result);
+    });
+    return results;
+  }
+
+  private static Result measure(Path path, Options options, ConcurrentHashMap<Integer, Histogram> groups) {
+    var result = new Result(path);
+    try (var file = WavFile.open(path, false)) {
+      var format = file.getFormat();
+      var channels = format.getChannels();
+      var frames = file.frames();
+      var scratch = SCRATCH.get();
+      scratch.ensure(format);
+      var samples = scratch.samples;
+      var blocks = scratch.blocks;
+      blocks.clear();
+      var filter = new KWeighting(format.getSampleRate(), channels);
+      var stepFrames = Math.max(1, Math.round(format.getSampleRate() / 10));
+      var steps = new double[BLOCK_STEPS];
+      var stepCount = 0;
+      var stepEnergy = 0.0;
+      var stepFill = 0;
+      var peak = 0f;
+      var squares = 0.0;
+
+      for (var frame = 0; frame < frames; frame += CHUNK_FRAMES) {
+        var count = Math.min(CHUNK_FRAMES, frames - frame);
+        file.read(frame, count, samples, scratch.bytes);
+        for (var i = 0; i < count; ++i) {
+          for (var channel = 0; channel < channels; ++channel) {
+            var sample = samples[i * channels + channel];
+            peak = Math.max(peak, Math.abs(sample));
+            squares += sample * sample;
+            var weighted = filter.process(channel, sample);
+            stepEnergy += weighted * weighted;
+          }
+          if (++stepFill == stepFrames) {
+            // Every channel is weighted 1, the surround weights do not apply to sample libraries
+            steps[stepCount++ % BLOCK_STEPS] = stepEnergy / stepFrames;
+            if (stepCount >= BLOCK_STEPS) {
+              var block = 0.0;
+              for (var step : steps) {
+                block += step;
+              }
+              blocks.add(block / BLOCK_STEPS);
+            }
+            stepEnergy = 0;
+            stepFill = 0;
+          }
+        }
+      }
+
+      result.velocity = file.getVelocity();
+      result.peakDb = toDb(peak);
+      result.rmsDb = frames > 0 ? 10 * Math.log10(squares / ((double) frames * channels)) : Double.NEGATIVE_INFINITY;
+      result.loudnessLufs = blocks.integrated();
+      var group = groups.computeIfAbsent(options.perLayer ? result.velocity : 0, key -> new Histogram());
+      synchronized (group) {
+        group.add(blocks);
+      }
+    } catch (IOException | RuntimeException e) {
+      result.error = e.getMessage();
+    }
+    return result;
+  }
+
+  private static void apply(Result result, double gainDb) {
+    if (Math.abs(gainDb) < MIN_GAIN_DB) {
+      return;
+    }
+    try (var file = WavFile.open(result.path, true)) {
+      var format = file.getFormat();
+      var channels = format.getChannels();
+      var frames = file.frames();
+      var scratch = SCRATCH.get();
+      scratch.ensure(format);
+      var samples = scratch.samples;
+      var gain = (float) Math.pow(10, gainDb / 20);
+      // TPDF dither of one step of the target format, none for float files
+      var sampleFormat = SampleFormat.of(format);
+      var step = sampleFormat == SampleFormat.FLOAT_32 ? 0.0 : 1.0 / (1L << (sampleFormat.bytes() * 8 - 1));
+      // Seeded by the name so the same library always comes out the same
+      var random = new SplittableRandom(result.path.getFileName().toString().hashCode());
+
+      for (var frame = 0; frame < frames; frame += CHUNK_FRAMES) {
+        var count = Math.min(CHUNK_FRAMES, frames - frame);
+        file.read(frame, count, samples, scratch.bytes);
+        for (var i = 0; i < count * channels; ++i) {
+          var dither = step > 0 ? (random.nextDouble() - random.nextDouble()) * step : 0;
+          samples[i] = (float) (samples[i] * gain + dither);
+        }
+        file.write(frame, count, samples, scratch.bytes);
+      }
+      file.force();
+      result.gainDb = gainDb;
+    } catch (IOException | RuntimeException e) {
+      result.error = e.getMessage();
+    }
+  }
+}
@@ -0,0 +1,355 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Finds sustain loops.
+ *
+ * The sustain region is mixed to mono and its normalised autocorrelation is
+ * computed with an FFT. The strongest periodicities become candidate loop
+ * lengths. For every candidate, loops are laid between upward zero crossings
+ * and scored by how well the waveform of every channel around the loop end
+ * matches the one around the loop start, so the splice is in phase and does
+ * not click. The best scoring loop wins.
+ *
+ * FFT plans are shared and the buffers are kept per thread, so the finder
+ * can run as a processing stage or over a whole library in parallel.
+ */
+public class LoopFinder {
+  public static class Options {
+    // Shortest loop worth having (ms)
+    public int minLoopMillis;
+
+    // Skipped after the onset so the attack never ends up in the loop (ms)
+    public int attackMillis;
+
+    // Lowest correlation between loop start and end that is accepted (0 to 1)
+    public double minCorrelation;
+
+    public Options(int minLoopMillis, int attackMillis, double minCorrelation) {
+      this.minLoopMillis = minLoopMillis;
+      this.attackMillis = attackMillis;
+      this.minCorrelation = minCorrelation;
+    }
+
+    public static Options defaults() {
+      return new Options(100, 150, 0.9);
+    }
+  }
+
+  public static class Loop {
+    // Frames, end inclusive like the smpl chunk
+    public long start;
+    public long end;
+
+    // Autocorrelation at the loop length
+    public double correlation;
+
+    // Normalised waveform difference around the splice, 0 is a perfect match
+    public double mismatch;
+
+    public Loop(long _start, long _end, double _correlation, double _mismatch) {
+      this.start = _start;
+      this.end = _end;
+      this.correlation = _correlation;
+      this.mismatch = _mismatch;
+    }
+
+    public double score() {
+      return this.mismatch + (1 - this.correlation);
+    }
+  }
+
+  // Outcome for one file of a library run, loop and error may both be null
+  public static class Result {
+    public Path path;
+    public Loop loop;
+    public String error;
+
+    public Result(Path _path, Loop _loop, String _error) {
+      this.path = _path;
+      this.loop = _loop;
+      this.error = _error;
+    }
+  }
+
+  private static int LENGTH_CANDIDATES = 8;
+  private static int START_CANDIDATES = 16;
+
+  // Frames compared on each side of the splice
+  private static int MATCH_FRAMES = 64;
+
+  // How far the loop end may move to reach a zero crossing
+  private static int END_SEARCH_FRAMES = 48;
+
+  // Longest region analysed, keeps the FFT at 2^19 points
+  private static int MAX_REGION_FRAMES = 1 << 18;
+
+  // Envelope used to find the sustain when the note off is unknown
+  private static int ENVELOPE_MILLIS = 10;
+  private static double SUSTAIN_DROP_DB = 12;
+
+  private static class Scratch {
+    public float[] mono = new float[0];
+    public double[] energy = new double[0];
+    public double[] real = new double[0];
+    public double[] imaginary = new double[0];
+    public float[] samples = new float[0];
+    public byte[] bytes = new byte[1 << 16];
+
+    public void ensure(int frames, int fftSize) {
+      if (this.mono.length < frames) {
+        this.mono = new float[frames];
+        this.energy = new double[frames + 1];
+      }
+      if (this.real.length < fftSize) {
+        this.real = new double[fftSize];
+        this.imaginary = new double[fftSize];
+      }
+    }
+  }
+
+  private static ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+  /**
+   * Searches frames [from, to) of the interleaved samples for the best loop,
+   * returns null if nothing correlates well enough.
+   */
+  public static Loop find(float[] samples, int channels, float sampleRate, int from, int to, Options options) {
+    var minLoop = (int) (sampleRate * options.minLoopMillis / 1000);
+    to = Math.min(to, from + MAX_REGION_FRAMES);
+    var length = to - from;
+    if (minLoop < 1 || length < 2 * minLoop + 2 * MATCH_FRAMES) {
+      return null;
+    }
+
+    var fft = FFT.plan(FFT.sizeFor(2 * length));
+    var scratch = SCRATCH.get();
+    scratch.ensure(length, fft.size());
+    var mono = scratch.mono;
+    var energy = scratch.energy;
+    var real = scratch.real;
+    var imaginary = scratch.imaginary;
+
+    energy[0] = 0;
+    for (var i = 0; i < length; ++i) {
+      var sum = 0f;
+      for (var channel = 0; channel < channels; ++channel) {
+        sum += samples[(from + i) * channels + channel];
+      }
+      mono[i] = sum / channels;
+      energy[i + 1] = energy[i] + (double) mono[i] * mono[i];
+    }
+
+    // Autocorrelation as the inverse transform of the power spectrum
+    for (var i = 0; i < fft.size(); ++i) {
+      real[i] = i < length ? mono[i] : 0;
+      imaginary[i] = 0;
+    }
+    fft.forward(real, imaginary);
+    for (var i = 0; i < fft.size(); ++i) {
+      real[i] = real[i] * real[i] + imaginary[i] * imaginary[i];
+      imaginary[i] = 0;
+    }
+    fft.inverse(real, imaginary);
+
+    // Strongest local maxima of the normalised autocorrelation
+    var lags = new int[LENGTH_CANDIDATES];
+    var correlations = new double[LENGTH_CANDIDATES];
+    var found = 0;
+    var maxLag = length - 2 * MATCH_FRAMES - END_SEARCH_FRAMES;
+    var previous = normalised(real, energy, length, minLoop - 1);
+    var current = normalised(real, energy, length, minLoop);
+    for (var lag = minLoop; lag < maxLag; ++lag) {
+      var next = normalised(real, energy, length, lag + 1);
+      var peak = current >= options.minCorrelation && current >= previous && current > next;
+      if (peak && (found < LENGTH_CANDIDATES || current > correlations[found - 1])) {
+        // Insert keeping the candidates sorted, strongest first
+        var slot = found < LENGTH_CANDIDATES ? found++ : found - 1;
+        while (slot > 0 && correlations[slot - 1] < current) {
+          lags[slot] = lags[slot - 1];
+          correlations[slot] = correlations[slot - 1];
+          slot--;
+        }
+        lags[slot] = lag;
+        correlations[slot] = current;
+      }
+      previous = current;
+      current = next;
+    }
+
+    Loop best = null;
+    for (var candidate = 0; candidate < found; ++candidate) {
+      var lag = lags[candidate];
+      // Spread the start candidates over the part of the region a loop of this length fits in
+      var spacing = Math.max(1, (length - lag - 2 * MATCH_FRAMES - END_SEARCH_FRAMES) / START_CANDIDATES);
+      var position = MATCH_FRAMES;
+      for (var tries = 0; tries < START_CANDIDATES; ++tries) {
+        var start = nextRisingCrossing(mono, position, length - lag - MATCH_FRAMES - END_SEARCH_FRAMES);
+        if (start < 0) {
+          break;
+        }
+        var end = nearestRisingCrossing(mono, start + lag, END_SEARCH_FRAMES, length - MATCH_FRAMES);
+        if (end > start) {
+          var mismatch = mismatch(samples, channels, from + start, from + end);
+          var loop = new Loop(from + start, from + end - 1, correlations[candidate], mismatch);
+          if (best == null || loop.score() < best.score()) {
+            best = loop;
+          }
+        }
+        position = start + spacing;
+      }
+    }
+    return best;
+  }
+
+  // Correlation of the signal with itself shifted by lag, over the overlapping part
+  private static double normalised(double[] autocorrelation, double[] energy, int length, int lag) {
+    var head = energy[length - lag];
+    var tail = energy[length] - energy[lag];
+    var norm = Math.sqrt(head * tail);
+    return norm <= 0 ? 0 : autocorrelation[lag] / norm;
+  }
+
+  private static int nextRisingCrossing(float[] mono, int from, int to) {
+    for (var i = Math.max(1, from); i < to; ++i) {
+      if (mono[i - 1] < 0 && mono[i] >= 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int nearestRisingCrossing(float[] mono, int around, int radius, int limit) {
+    for (var distance = 0; distance <= radius; ++distance) {
+      if (isRisingCrossing(mono, around - distance, limit)) {
+        return around - distance;
+      }
+      if (isRisingCrossing(mono, around + distance, limit)) {
+        return around + distance;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isRisingCrossing(float[] mono, int i, int limit) {
+    return i >= 1 && i < limit && mono[i - 1] < 0 && mono[i] >= 0;
+  }
+
+  // Squared difference of every channel around start and end, relative to their energy
+  private static double mismatch(float[] samples, int channels, int start, int end) {
+    var difference = 0.0;
+    var energy = 1e-12;
+    for (var k = -MATCH_FRAMES; k < MATCH_FRAMES; ++k) {
+      for (var channel = 0; channel < channels; ++channel) {
+        var a = samples[(start + k) * channels + channel];
+        var b = samples[(end + k) * channels + channel];
+        difference += (a - b) * (a - b);
+        energy += a * a + b * b;
+      }
+    }
+    return difference / energy;
+  }
+
+  /**
+   * Frames [start, end) that hold the sustain: after the loudest part of the
+   * attack, until the level drops SUSTAIN_DROP_DB below it.
+   */
+  public static int[] sustainRegion(float[] samples, int frames, int channels, float sampleRate, int from,
+      Options options) {
+    var block = Math.max(1, (int) (sampleRate * ENVELOPE_MILLIS / 1000));
+    var peak = 0.0;
+    var peakBlock = from;
+    var levels = new double[(frames - from) / block + 1];
+    for (var b = 0; b < levels.length; ++b) {
+      var sum = 0.0;
+      var first = from + b * block;
+      var last = Math.min(frames, first + block);
+      for (var i = first * channels; i < last * channels; ++i) {
+        sum += samples[i] * samples[i];
+      }
+      levels[b] = last > first ? Math.sqrt(sum / ((last - first) * channels)) : 0;
+      if (levels[b] > peak) {
+        peak = levels[b];
+        peakBlock = b;
+      }
+    }
+    var start = Math.max(from + (peakBlock + 1) * block, from + (int) (sampleRate * options.attackMillis / 1000));
+    var floor = peak * Math.pow(10, -SUSTAIN_DROP_DB / 20);
+    var end = start;
+    for (var b = (start - from) / block; b < levels.length && levels[b] >= floor; ++b) {
+      end = Math.min(frames, from + (b + 1) * block);
+    }
+    return new int[] { start, end };
+  }
+
+  // Writes the best loop of the take's sustain into its metadata
+  static TakeProcessor stage(Options options) {
+    return take -> {
+      if (take.silent) {
+        return;
+      }
+      var from = Math.max(0, take.onsetFrame >= 0 ? take.onsetFrame : take.noteOnFrame);
+      var region = sustainRegion(take.samples, take.frames, take.channels(), take.sampleRate(), from, options);
+      var end = take.noteOffFrame > region[0] ? Math.min(region[1], take.noteOffFrame) : region[1];
+      var loop = find(take.samples, take.channels(), take.sampleRate(), region[0], end, options);
+      if (loop != null) {
+        take.metadata.loopStart = loop.start;
+        take.metadata.loopEnd = loop.end;
+      }
+    };
+  }
+
+  /**
+   * Finds and writes loops for every WAV file in directory, several files at
+   * a time on the common fork/join pool. Files are patched in place, which
+   * only works for files written by this program. Results are reported as
+   * they come in, from the worker threads.
+   */
+  public static List<Result> processDirectory(Path directory, Options options, Consumer<Result> onFile)
+      throws IOException {
+    List<Path> files;
+    try (var listing = Files.list(directory)) {
+      files = listing.filter(path -> path.getFileName().toString().toLowerCase().endsWith(".wav")).sorted()
+          .collect(Collectors.toList());
+    }
+    return files.parallelStream().map(path -> {
+      var result = processFile(path, options);
+      onFile.accept(result);
+      return result;
+    }).collect(Collectors.toList());
+  }
+
+  private static Result processFile(Path path, Options options) {
+    try (var file = WavFile.open(path, true)) {
+      if (!file.canWriteLoop()) {
+        return new Result(path, null, "no room for a loop in the smpl chunk");
+      }
+      var format = file.getFormat();
+      var channels = format.getChannels();
+      var frames = file.frames();
+      var scratch = SCRATCH.get();
+      if (scratch.samples.length < frames * channels) {
+        scratch.samples = new float[frames * channels];
+      }
+      var samples = scratch.samples;
+      file.read(samples, scratch.bytes);
+
+      var onset = OnsetDetector.detect(samples, frames, channels, format.getSampleRate(), 0);
+      if (onset == OnsetDetector.NOT_FOUND) {
+        return new Result(path, null, null);
+      }
+      var region = sustainRegion(samples, frames, channels, format.getSampleRate(), onset, options);
+      var loop = find(samples, channels, format.getSampleRate(), region[0], region[1], options);
+      if (loop != null) {
+        file.writeLoop(loop.start, loop.end);
+      }
+      return new Result(path, loop, null);
+    } catch (IOException | RuntimeException e) {
+      return new Result(path, null, e.getMessage());
+    }
+  }
+}
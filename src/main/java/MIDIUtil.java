@@ -28,6 +28,16 @@ public class MIDIUtil {
     throw new IllegalArgumentException("Expected a note in scientific pitch notation, got " + note);
   }
 
+  // Equal tempered frequency of a MIDI note (Hz), A4 = 440
+  public static double toFrequency(int note) {
+    return 440 * Math.pow(2, (note - 69) / 12.0);
+  }
+
+  // How far frequency (Hz) is above the note's pitch, in cents
+  public static double centsFrom(int note, double frequency) {
+    return 1200 * Math.log(frequency / toFrequency(note)) / Math.log(2);
+  }
+
   public static String fromMidi(int number) {
     var offset = number % 12;
     var octave = (number - offset) / 12;
@@ -1,5 +1,9 @@
 public class Main {
     public static void main(String[] args) throws Exception {
+        // Checked first so that headless runs never load the JavaFX classes
+        if (Headless.isHeadless(args)) {
+            System.exit(Headless.run(args));
+        }
         AutoSamplerApplication.run(args);
     }
 }
@@ -0,0 +1,113 @@
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+
+/**
+ * Sends MIDI messages at a given position of the capture stream, so that
+ * every take is released at the same frame offset.
+ *
+ * Devices with a microsecond clock get timestamped messages and keep time
+ * themselves. The message is still handed over only shortly before it is
+ * due, so a device that ignores timestamps is off by that lead at most.
+ * Other devices are sent the message once the capture clock reaches the
+ * frame, waiting with a park until close to it and spinning on the clock for
+ * the rest, which avoids the millisecond jitter of Thread.sleep.
+ */
+public class MidiScheduler {
+  // Parks until this close to the deadline, then spins
+  private static long SPIN_NANOS = 2_000_000;
+
+  // Longest single park, so a clock running ahead of real time is noticed
+  private static long MAX_PARK_NANOS = 1_000_000;
+
+  // How long a clock that stopped advancing is waited for
+  private static long STALL_NANOS = 100_000_000;
+
+  // How early timestamped messages are handed to the device (ms)
+  private static double TIMESTAMP_LEAD_MILLIS = 5;
+
+  private MidiDevice device;
+  private Receiver receiver;
+  private LongSupplier frames;
+  private double frameRate;
+  private boolean timestamps;
+
+  // frames is the capture clock, counting frames at frameRate
+  public MidiScheduler(MidiDevice _device, Receiver _receiver, LongSupplier _frames, double _frameRate) {
+    this.device = _device;
+    this.receiver = _receiver;
+    this.frames = _frames;
+    this.frameRate = _frameRate;
+    this.timestamps = _device.getMicrosecondPosition() >= 0;
+  }
+
+  // True if the device keeps time for timestamped messages
+  public boolean usesTimestamps() {
+    return this.timestamps;
+  }
+
+  // Device time (us) a message sent now is stamped with, -1 without timestamps
+  private long now() {
+    return this.timestamps ? this.device.getMicrosecondPosition() : -1;
+  }
+
+  /**
+   * Sends message immediately. Returns the device time (us) it was stamped
+   * with, or -1 if the device has no clock.
+   */
+  public long send(MidiMessage message) {
+    var timeStamp = this.now();
+    this.receiver.send(message, timeStamp);
+    return timeStamp;
+  }
+
+  /**
+   * Sends message delay (us) after the reference, given both as device time
+   * (from {@link #send}) and as capture frame. The message must not be
+   * modified afterwards, the device may still be holding on to it.
+   */
+  public void sendAfter(MidiMessage message, long referenceTime, long referenceFrame, long delayMicros)
+      throws InterruptedException {
+    var frame = referenceFrame + Math.round(delayMicros * this.frameRate / 1e6);
+    if (this.timestamps && referenceTime >= 0) {
+      this.awaitFrame(frame - Math.round(this.frameRate * TIMESTAMP_LEAD_MILLIS / 1000));
+      this.receiver.send(message, referenceTime + delayMicros);
+    } else {
+      this.awaitFrame(frame);
+      this.receiver.send(message, -1);
+    }
+  }
+
+  /**
+   * Waits until the capture clock reaches frame. The clock only advances in
+   * steps of the device's buffer, so the last stretch is timed by the
+   * nanosecond clock from the most recent reading.
+   */
+  public void awaitFrame(long frame) throws InterruptedException {
+    // Gives up this long after the frame was due, in case the clock stalls
+    var start = this.frames.getAsLong();
+    var giveUp = System.nanoTime() + (long) ((frame - start) * 1e9 / this.frameRate) + STALL_NANOS;
+    while (System.nanoTime() < giveUp) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      var current = this.frames.getAsLong();
+      if (current >= frame) {
+        return;
+      }
+      var remaining = (long) ((frame - current) * 1e9 / this.frameRate);
+      if (remaining > SPIN_NANOS) {
+        LockSupport.parkNanos(this, Math.min(remaining - SPIN_NANOS, MAX_PARK_NANOS));
+        continue;
+      }
+      var deadline = System.nanoTime() + remaining;
+      while (System.nanoTime() < deadline && this.frames.getAsLong() < frame) {
+        Thread.onSpinWait();
+      }
+      return;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Finds where the sound of a take actually starts.
+ *
+ * The threshold adapts to the noise floor measured before note on, and the
+ * first frame above it is moved back to the preceding zero crossing so the
+ * take can be cut without a click.
+ */
+public class OnsetDetector {
+  public static int NOT_FOUND = -1;
+
+  // Never accept an onset quieter than this, whatever the noise floor
+  private static double MINIMUM_THRESHOLD_DB = -50;
+
+  // How far above the noise floor the onset has to be
+  private static double NOISE_MARGIN_DB = 12;
+
+  // How far back from the threshold crossing we look for a zero crossing (ms)
+  private static double REFINE_MILLIS = 2;
+
+  /**
+   * Returns the onset frame at or after from, or NOT_FOUND. Frames before
+   * from are treated as noise.
+   */
+  public static int detect(float[] samples, int frames, int channels, float sampleRate, int from) {
+    from = Math.max(0, Math.min(from, frames));
+    var noise = peak(samples, channels, 0, from);
+    var threshold = Math.max(Math.pow(10, MINIMUM_THRESHOLD_DB / 20), noise * Math.pow(10, NOISE_MARGIN_DB / 20));
+
+    for (var frame = from; frame < frames; ++frame) {
+      for (var channel = 0; channel < channels; ++channel) {
+        if (Math.abs(samples[frame * channels + channel]) >= threshold) {
+          return refine(samples, channels, channel, frame, Math.max(from, frame - (int) (sampleRate * REFINE_MILLIS / 1000)));
+        }
+      }
+    }
+    return NOT_FOUND;
+  }
+
+  // Walks back from frame to the last sign change of channel, but not past limit
+  private static int refine(float[] samples, int channels, int channel, int frame, int limit) {
+    var sign = Math.signum(samples[frame * channels + channel]);
+    for (var i = frame - 1; i >= limit; --i) {
+      var sample = samples[i * channels + channel];
+      if (sample == 0 || Math.signum(sample) != sign) {
+        return i + 1;
+      }
+    }
+    return limit;
+  }
+
+  private static double peak(float[] samples, int channels, int fromFrame, int toFrame) {
+    var peak = 0.0;
+    for (var i = fromFrame * channels; i < toFrame * channels; ++i) {
+      peak = Math.max(peak, Math.abs(samples[i]));
+    }
+    return peak;
+  }
+
+  /**
+   * Cuts everything before the onset, keeping preRoll (ms). When the session
+   * was calibrated the cut is placed at the measured latency after note on,
+   * so every take starts at the same point relative to its note on, quiet
+   * attacks included. Takes where nothing arrived are flagged as silent and
+   * rejected, so they are recorded again.
+   */
+  static TakeProcessor trimToOnset(double preRollMillis) {
+    return take -> {
+      var channels = take.channels();
+      var onset = detect(take.samples, take.frames, channels, take.sampleRate(), take.noteOnFrame);
+      take.onsetFrame = onset;
+      if (onset == NOT_FOUND) {
+        take.silent = true;
+        take.retake = true;
+        take.reason = "no sound arrived";
+        return;
+      }
+
+      var start = onset;
+      if (take.latencyFrames >= 0) {
+        start = Math.min(onset, take.noteOnFrame + take.latencyFrames);
+      }
+      start = Math.max(0, start - take.millisToFrames(preRollMillis));
+      if (start == 0) {
+        return;
+      }
+      System.arraycopy(take.samples, start * channels, take.samples, 0, (take.frames - start) * channels);
+      take.frames -= start;
+      take.noteOnFrame -= start;
+      take.onsetFrame -= start;
+      if (take.noteOffFrame >= 0) {
+        take.noteOffFrame = Math.max(0, take.noteOffFrame - start);
+      }
+    };
+  }
+}
@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Gets the output directory ready before any device is opened: the previous
+ * run is moved aside for a clean run, the directories are created and the
+ * file system is checked for room for the takes of the plan.
+ *
+ * All of it is file system work that can take a while on a directory full of
+ * old samples, callers run it on a background thread.
+ */
+public class OutputDirectory {
+  // Headers and chunks of a take, rounded up to a file system block
+  private static int FILE_OVERHEAD_BYTES = 4096;
+
+  public static class Estimate {
+    // Takes still to be written
+    public int takes;
+
+    // If every take ends at note off, and if every take runs to the maximum length
+    public long minimumBytes;
+    public long maximumBytes;
+
+    public Estimate(int _takes, long _minimumBytes, long _maximumBytes) {
+      this.takes = _takes;
+      this.minimumBytes = _minimumBytes;
+      this.maximumBytes = _maximumBytes;
+    }
+  }
+
+  // Uncompressed size of one take, FLAC usually comes out well below it
+  private static long takeBytes(AutoSampler.Options options, int millis) {
+    var format = options.captureFormat;
+    var frames = (long) Math.ceil((double) format.sampleRate * millis / 1000.0);
+    return frames * format.channels * options.outputFormat.bytes() + FILE_OVERHEAD_BYTES;
+  }
+
+  /**
+   * Space the plan needs, written at the requested capture format. When
+   * resuming, takes whose file already exists are not counted, they are
+   * either kept or replaced by one of the same size.
+   */
+  public static Estimate estimate(AutoSampler.Options options, SamplingPlan plan) {
+    var takes = 0;
+    for (var index = 0; index < plan.size(); ++index) {
+      if (!options.resume || !Files.exists(AutoSampler.output(options, plan, index))) {
+        ++takes;
+      }
+    }
+    return new Estimate(takes, takes * takeBytes(options, options.noteHoldDuration),
+        takes * takeBytes(options, Math.max(options.noteHoldDuration, options.sampleLength)));
+  }
+
+  /**
+   * Prepares the directory for the plan. Unless resuming, a previous run is
+   * renamed out of the way if moveAside is set. Fails if not even the
+   * shortest possible takes fit, a warning is printed if the longest ones
+   * might not.
+   */
+  public static void prepare(AutoSampler.Options options, SamplingPlan plan, boolean moveAside)
+      throws IOException {
+    var directory = options.outputDirectory;
+    if (moveAside && !options.resume) {
+      var previous = SessionJournal.moveAside(directory);
+      if (previous != null) {
+        System.err.println("Moved previous samples to " + previous);
+      }
+    }
+    Files.createDirectories(directory.resolve(SessionJournal.STAGING_DIRECTORY));
+
+    var estimate = estimate(options, plan);
+    var usable = Files.getFileStore(directory).getUsableSpace();
+    if (usable < estimate.minimumBytes) {
+      throw new IOException(String.format("Not enough space in %s, %d takes need at least %s but only %s are free",
+          directory, estimate.takes, formatBytes(estimate.minimumBytes), formatBytes(usable)));
+    }
+    if (usable < estimate.maximumBytes) {
+      System.err.println(String.format("%s free in %s, the takes need up to %s if they all run to the maximum length",
+          formatBytes(usable), directory, formatBytes(estimate.maximumBytes)));
+    }
+  }
+
+  static String formatBytes(long bytes) {
+    if (bytes < 1024 * 1024) {
+      return String.format("%d kB", (bytes + 1023) / 1024);
+    }
+    if (bytes < 1024L * 1024 * 1024) {
+      return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+    return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+  }
+}
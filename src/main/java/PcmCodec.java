@@ -0,0 +1,93 @@
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Conversions between raw PCM bytes and interleaved float samples.
+ *
+ * Both directions work on caller supplied arrays so that the capture path can
+ * reuse its buffers, the format is only inspected once per call. n-bit
+ * integers are scaled by 2^(n-1) both ways, so decoding and encoding at the
+ * same format gives back the same bytes.
+ */
+public class PcmCodec {
+
+  // Decodes length samples starting at byte offset into samples[0..length)
+  public static void decode(AudioFormat format, byte[] data, int offset, float[] samples, int length) {
+    decode(format, data, offset, samples, 0, length);
+  }
+
+  // Decodes length samples starting at byte offset into samples[target..target + length)
+  public static void decode(AudioFormat format, byte[] data, int offset, float[] samples, int target,
+      int length) {
+    var sampleFormat = SampleFormat.of(format);
+    var bigEndian = format.isBigEndian();
+    switch (sampleFormat) {
+      case PCM_16:
+        for (var i = 0; i < length; ++i) {
+          var index = offset + i * 2;
+          var value = bigEndian
+              ? (data[index] << 8) | (data[index + 1] & 0xff)
+              : (data[index + 1] << 8) | (data[index] & 0xff);
+          samples[target + i] = value * (1f / 32768);
+        }
+        break;
+      case PCM_24:
+        for (var i = 0; i < length; ++i) {
+          var index = offset + i * 3;
+          var value = bigEndian
+              ? (data[index] << 16) | ((data[index + 1] & 0xff) << 8) | (data[index + 2] & 0xff)
+              : (data[index + 2] << 16) | ((data[index + 1] & 0xff) << 8) | (data[index] & 0xff);
+          samples[target + i] = value * (1f / 8388608);
+        }
+        break;
+      case PCM_32:
+        for (var i = 0; i < length; ++i) {
+          samples[target + i] = readInt(data, offset + i * 4, bigEndian) * (1f / 2147483648f);
+        }
+        break;
+      case FLOAT_32:
+        for (var i = 0; i < length; ++i) {
+          samples[target + i] = Float.intBitsToFloat(readInt(data, offset + i * 4, bigEndian));
+        }
+        break;
+    }
+  }
+
+  private static int readInt(byte[] data, int index, boolean bigEndian) {
+    return bigEndian
+        ? (data[index] << 24) | ((data[index + 1] & 0xff) << 16) | ((data[index + 2] & 0xff) << 8)
+            | (data[index + 3] & 0xff)
+        : (data[index + 3] << 24) | ((data[index + 2] & 0xff) << 16) | ((data[index + 1] & 0xff) << 8)
+            | (data[index] & 0xff);
+  }
+
+  // Encodes samples[0..length) into data starting at byte offset, clipping to [-2^(n-1), 2^(n-1) - 1]
+  public static void encode(AudioFormat format, float[] samples, int length, byte[] data, int offset) {
+    var sampleFormat = SampleFormat.of(format);
+    var bigEndian = format.isBigEndian();
+    var bytes = sampleFormat.bytes();
+    for (var i = 0; i < length; ++i) {
+      int value;
+      switch (sampleFormat) {
+        case PCM_16:
+        case PCM_24:
+        case PCM_32:
+          value = quantize(samples[i], sampleFormat.bits);
+          break;
+        default:
+          value = Float.floatToRawIntBits(samples[i]);
+          break;
+      }
+      var index = offset + i * bytes;
+      for (var b = 0; b < bytes; ++b) {
+        var shift = 8 * (bigEndian ? bytes - 1 - b : b);
+        data[index + b] = (byte) (value >> shift);
+      }
+    }
+  }
+
+  // Integer value of a sample in an n-bit format, clipped to [-2^(n-1), 2^(n-1) - 1]
+  static int quantize(float sample, int bits) {
+    var scale = (double) (1L << (bits - 1));
+    return (int) Math.max(-scale, Math.min(scale - 1, Math.round(sample * scale)));
+  }
+}
@@ -1,3 +1,5 @@
+import java.util.ArrayList;
+
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.paint.Color;
@@ -6,22 +8,43 @@ import javafx.scene.text.FontPosture;
 import javafx.scene.text.FontSmoothingType;
 import javafx.scene.text.FontWeight;
 
+/**
+ * Keyboard view drawn on a canvas.
+ *
+ * Key states are changed with setState, which only marks the key dirty, and
+ * flush repaints the dirty keys (plus the black keys overlapping a dirty white
+ * key). A whole batch of changes therefore costs one partial redraw.
+ */
 public class Piano {
+  public static enum State {
+    NONE,
+    // Part of the sampling plan
+    HIGHLIGHTED,
+    // Waiting to be recorded in the running session
+    QUEUED,
+    RECORDING,
+    DONE
+  }
+
   private static class Key {
     public static enum Type {
       BLACK,
       WHITE
     }
 
-    public boolean pressed;
+    public State state;
+    public boolean dirty;
     public Type type;
     public int number;
     public int midiCode;
     public double x;
     public double y;
 
-    public Key(Type _type, int _number, int _midi, boolean _pressed, double _x, double _y) {
-      this.pressed = _pressed;
+    // Black keys drawn on top of this one, empty for black keys
+    public Key[] overlapping = new Key[0];
+
+    public Key(Type _type, int _number, int _midi, State _state, double _x, double _y) {
+      this.state = _state;
       this.number = _number;
       this.type = _type;
       this.x = _x;
@@ -40,15 +63,15 @@ public class Piano {
   private static double NUDGE = 2;
   private static double TEXT_HEIGHT = 18;
 
-  private static String WHITE_KEY_COLOR = "#eaeaec";
-  private static String BLACK_KEY_COLOR = "#0a0a0c";
-
-  private static String WHITE_KEY_PRESSED_COLOR = "#facacc";
-  private static String BLACK_KEY_PRESSED_COLOR = "#ba8a8c";
+  // Key colours indexed by State ordinal
+  private static Color[] WHITE_KEY_COLORS = new Color[] { Color.valueOf("#eaeaec"), Color.valueOf("#facacc"),
+      Color.valueOf("#f2dfb8"), Color.valueOf("#ff6a5c"), Color.valueOf("#b4dcb8") };
+  private static Color[] BLACK_KEY_COLORS = new Color[] { Color.valueOf("#0a0a0c"), Color.valueOf("#ba8a8c"),
+      Color.valueOf("#8a7548"), Color.valueOf("#d83c30"), Color.valueOf("#4e8a58") };
 
-  private static String PIANO_BACKGROUND = "#252525";
+  private static Color PIANO_BACKGROUND = Color.valueOf("#252525");
 
-  private static String TEXT_COLOR = "#aaaaacee";
+  private static Color TEXT_COLOR = Color.valueOf("#aaaaacee");
 
   static double width(int octaves) {
     return PADDING + (octaves * 7) * (WHITE_KEY_WIDTH + MARGIN) + PADDING - MARGIN;
@@ -91,7 +114,14 @@ public class Piano {
     return (x >= xPosition && x <= xPositionEnd) && (y >= yPosition && y <= yPositionEnd);
   }
 
+  public static interface KeyHandler {
+    // depth goes from 0 at the back of the key to 1 at its front edge
+    void invoke(int midiCode, double depth);
+  }
+
   private Key[] keys;
+  private int dirtyKeys;
+  private KeyHandler onKeyPressed;
   private Canvas canvas;
   private double width;
   private double height;
@@ -102,8 +132,8 @@ public class Piano {
   }
 
   private void drawLabels(GraphicsContext ctx) {
-    ctx.setFill(Color.valueOf(TEXT_COLOR));
-    ctx.setStroke(Color.valueOf(TEXT_COLOR));
+    ctx.setFill(TEXT_COLOR);
+    ctx.setStroke(TEXT_COLOR);
     ctx.setFontSmoothingType(FontSmoothingType.LCD);
     ctx.setFont(Font.font("Helvetica", FontWeight.NORMAL, FontPosture.REGULAR, 18));
     for (var i = 0; i < this.octaves; ++i) {
@@ -112,18 +142,30 @@ public class Piano {
     }
   }
 
+  private static void drawWhiteKey(GraphicsContext ctx, Key key) {
+    ctx.setFill(WHITE_KEY_COLORS[key.state.ordinal()]);
+    ctx.fillRect(key.x, key.y, WHITE_KEY_WIDTH, WHITE_KEY_HEIGHT);
+  }
+
+  private static void drawBlackKey(GraphicsContext ctx, Key key) {
+    ctx.setFill(PIANO_BACKGROUND);
+    ctx.fillRect(key.x, key.y, BLACK_KEY_WIDTH, BLACK_KEY_HEIGHT);
+
+    ctx.setFill(BLACK_KEY_COLORS[key.state.ordinal()]);
+    ctx.fillRect(key.x + MARGIN, key.y, BLACK_KEY_WIDTH - MARGIN * 2, BLACK_KEY_HEIGHT - MARGIN);
+  }
+
   public void draw() {
     var ctx = this.canvas.getGraphicsContext2D();
     ctx.setImageSmoothing(false);
-    ctx.setFill(Color.valueOf(PIANO_BACKGROUND));
+    ctx.setFill(PIANO_BACKGROUND);
     ctx.fillRect(0, 0, width, height);
 
     // We need to render the white keys first
     for (int i = 0; i < this.keys.length; ++i) {
       var key = this.keys[i];
       if (key.type == Key.Type.WHITE) {
-        ctx.setFill(key.pressed ? Color.valueOf(WHITE_KEY_PRESSED_COLOR) : Color.valueOf(WHITE_KEY_COLOR));
-        ctx.fillRect(key.x, key.y, WHITE_KEY_WIDTH, WHITE_KEY_HEIGHT);
+        drawWhiteKey(ctx, key);
       }
     }
 
@@ -131,18 +173,67 @@ public class Piano {
     for (int i = 0; i < this.keys.length; ++i) {
       var key = this.keys[i];
       if (key.type == Key.Type.BLACK) {
-        var keyColor = key.pressed ? Color.valueOf(BLACK_KEY_PRESSED_COLOR) : Color.valueOf(BLACK_KEY_COLOR);
-        ctx.setFill(Color.valueOf(PIANO_BACKGROUND));
-        ctx.fillRect(key.x, key.y, BLACK_KEY_WIDTH, BLACK_KEY_HEIGHT);
-
-        ctx.setFill(keyColor);
-        ctx.fillRect(key.x + MARGIN, key.y, BLACK_KEY_WIDTH - MARGIN * 2, BLACK_KEY_HEIGHT - MARGIN);
+        drawBlackKey(ctx, key);
       }
+      key.dirty = false;
     }
+    this.dirtyKeys = 0;
 
     this.drawLabels(ctx);
   }
 
+  // Repaints only the keys changed since the last flush or draw
+  public void flush() {
+    if (this.dirtyKeys == 0) {
+      return;
+    }
+    var ctx = this.canvas.getGraphicsContext2D();
+    ctx.setImageSmoothing(false);
+    for (var key : this.keys) {
+      if (key.dirty && key.type == Key.Type.WHITE) {
+        drawWhiteKey(ctx, key);
+        for (var black : key.overlapping) {
+          black.dirty = true;
+        }
+        key.dirty = false;
+      }
+    }
+    for (var key : this.keys) {
+      if (key.dirty) {
+        drawBlackKey(ctx, key);
+        key.dirty = false;
+      }
+    }
+    this.dirtyKeys = 0;
+  }
+
+  // Changes the state of a key without drawing, notes off the keyboard are ignored
+  public void setState(int midiCode, State state) {
+    var index = midiCode - this.keys[0].midiCode;
+    if (index < 0 || index >= this.keys.length) {
+      return;
+    }
+    this.setState(this.keys[index], state);
+  }
+
+  private void setState(Key key, State state) {
+    if (key.state == state) {
+      return;
+    }
+    key.state = state;
+    if (!key.dirty) {
+      key.dirty = true;
+      this.dirtyKeys++;
+    }
+  }
+
+  // Sets every key to NONE without drawing
+  public void reset() {
+    for (var key : this.keys) {
+      this.setState(key, State.NONE);
+    }
+  }
+
   private Key collision(double x, double y) {
     Key result = null;
     for (var key : this.keys) {
@@ -158,26 +249,14 @@ public class Piano {
 
   public void onMouseDown(double x, double y) {
     var key = this.collision(x, y);
-    if (key != null) {
-      key.pressed = true;
-      this.draw();
+    if (key != null && this.onKeyPressed != null) {
+      var height = key.type == Key.Type.BLACK ? BLACK_KEY_HEIGHT : WHITE_KEY_HEIGHT;
+      this.onKeyPressed.invoke(key.midiCode, Math.max(0, Math.min(1, (y - key.y) / height)));
     }
   }
 
-  public void highlight(int midiCode) {
-    for (var i = 0; i < this.keys.length; ++i) {
-      if (this.keys[i].midiCode == midiCode) {
-        this.keys[i].pressed = true;
-      }
-    }
-    this.draw();
-  }
-
-  public void clear() {
-    for (var i = 0; i < this.keys.length; ++i) {
-      this.keys[i].pressed = false;
-    }
-    this.draw();
+  public void setOnKeyPressed(KeyHandler handler) {
+    this.onKeyPressed = handler;
   }
 
   public Piano(double _width, double _height, int _octaves) {
@@ -190,14 +269,30 @@ public class Piano {
     for (int i = 0; i < _octaves; ++i) {
       for (int j = 0; j < 5; ++j) {
         var noteIndex = i * 12 + BLACK_KEY_OFFSETS[j];
-        this.keys[noteIndex] = new Key(Key.Type.BLACK, noteIndex, startingNote + noteIndex, false, blackKeyX(i, j),
+        this.keys[noteIndex] = new Key(Key.Type.BLACK, noteIndex, startingNote + noteIndex, State.NONE, blackKeyX(i, j),
             blackKeyY(i, j));
       }
       for (int j = 0; j < 7; ++j) {
         var noteIndex = i * 12 + WHITE_KEY_OFFSETS[j];
-        this.keys[noteIndex] = new Key(Key.Type.WHITE, noteIndex, startingNote + noteIndex, false, whiteKeyX(i * 7 + j),
-            whiteKeyY(i * 7 + j));
+        this.keys[noteIndex] = new Key(Key.Type.WHITE, noteIndex, startingNote + noteIndex, State.NONE,
+            whiteKeyX(i * 7 + j), whiteKeyY(i * 7 + j));
+      }
+    }
+
+    // Precompute which black keys have to be repainted over a white one
+    for (var key : this.keys) {
+      if (key.type != Key.Type.WHITE) {
+        continue;
       }
+      var overlapping = new ArrayList<Key>();
+      for (var black : this.keys) {
+        if (black.type == Key.Type.BLACK && black.x < key.x + WHITE_KEY_WIDTH && black.x + BLACK_KEY_WIDTH > key.x) {
+          overlapping.add(black);
+        }
+      }
+      key.overlapping = overlapping.toArray(new Key[0]);
     }
+
+    this.canvas.setOnMousePressed(event -> this.onMouseDown(event.getX(), event.getY()));
   }
 }
@@ -0,0 +1,226 @@
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Checks that a take sounds at the pitch of the note it was recorded for.
+ *
+ * The fundamental is measured with YIN on a few windows spread over the
+ * sustain and the median is compared with the equal tempered pitch of the
+ * note. The search covers a little more than an octave either way, so a
+ * wrong transposition is reported instead of being mistaken for a harmonic.
+ *
+ * The difference function is computed with an FFT and every buffer is kept
+ * per thread, so the pipeline workers analyse takes without allocating.
+ */
+public class PitchDetector {
+  public static class Options {
+    // Largest deviation that is accepted, takes further off are recorded again (cents)
+    public double toleranceCents;
+
+    // Store the correction for takes within the tolerance in their metadata
+    public boolean writeFineTune;
+
+    public Options(double _toleranceCents, boolean _writeFineTune) {
+      this.toleranceCents = _toleranceCents;
+      this.writeFineTune = _writeFineTune;
+    }
+
+    public static Options defaults() {
+      return new Options(25, true);
+    }
+  }
+
+  // First dip of the normalised difference below this is taken as the period
+  private static double YIN_THRESHOLD = 0.15;
+
+  // Without a dip below this there is no pitch, just noise
+  private static double UNVOICED = 0.5;
+
+  // How far from the note's pitch the period search goes
+  private static int SEARCH_SEMITONES = 13;
+
+  private static int WINDOWS = 7;
+  private static int MIN_WINDOW_FRAMES = 1024;
+
+  // Skipped after the onset, the attack rarely has a stable pitch (ms)
+  private static int ATTACK_MILLIS = 80;
+
+  // Windows quieter than this are not analysed
+  private static double SILENCE_DB = -50;
+
+  private static class Scratch {
+    public float[] mono = new float[0];
+    public double[] energy = new double[0];
+    public double[] difference = new double[0];
+    public double[] windowReal = new double[0];
+    public double[] windowImaginary = new double[0];
+    public double[] real = new double[0];
+    public double[] imaginary = new double[0];
+    public double[] estimates = new double[WINDOWS];
+
+    public void ensure(int frames, int lags, int fftSize) {
+      if (this.mono.length < frames) {
+        this.mono = new float[frames];
+        this.energy = new double[frames + 1];
+      }
+      if (this.difference.length < lags) {
+        this.difference = new double[lags];
+      }
+      if (this.real.length < fftSize) {
+        this.windowReal = new double[fftSize];
+        this.windowImaginary = new double[fftSize];
+        this.real = new double[fftSize];
+        this.imaginary = new double[fftSize];
+      }
+    }
+  }
+
+  private static ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+  /**
+   * Fundamental (Hz) of the window frames starting at from, searching periods
+   * of minLag to maxLag frames. The samples need window + maxLag frames from
+   * from on. Returns NaN if the window has no clear pitch.
+   */
+  public static double detect(float[] samples, int channels, float sampleRate, int from, int window, int minLag,
+      int maxLag) {
+    var length = window + maxLag + 1;
+    var fft = FFT.plan(FFT.sizeFor(length));
+    var scratch = SCRATCH.get();
+    scratch.ensure(length, maxLag + 2, fft.size());
+    var mono = scratch.mono;
+    var energy = scratch.energy;
+
+    energy[0] = 0;
+    for (var i = 0; i < length; ++i) {
+      var sum = 0f;
+      for (var channel = 0; channel < channels; ++channel) {
+        sum += samples[(from + i) * channels + channel];
+      }
+      mono[i] = sum / channels;
+      energy[i + 1] = energy[i] + (double) mono[i] * mono[i];
+    }
+    if (energy[window] / window < Math.pow(10, SILENCE_DB / 10)) {
+      return Double.NaN;
+    }
+
+    // Correlation of the window with the signal shifted by every lag, as conj(W) * S
+    var windowReal = scratch.windowReal;
+    var windowImaginary = scratch.windowImaginary;
+    var real = scratch.real;
+    var imaginary = scratch.imaginary;
+    for (var i = 0; i < fft.size(); ++i) {
+      windowReal[i] = i < window ? mono[i] : 0;
+      windowImaginary[i] = 0;
+      real[i] = i < length ? mono[i] : 0;
+      imaginary[i] = 0;
+    }
+    fft.forward(windowReal, windowImaginary);
+    fft.forward(real, imaginary);
+    for (var i = 0; i < fft.size(); ++i) {
+      var r = windowReal[i] * real[i] + windowImaginary[i] * imaginary[i];
+      var im = windowReal[i] * imaginary[i] - windowImaginary[i] * real[i];
+      real[i] = r;
+      imaginary[i] = im;
+    }
+    fft.inverse(real, imaginary);
+
+    // Cumulative mean normalised difference
+    var difference = scratch.difference;
+    difference[0] = 1;
+    var sum = 0.0;
+    for (var lag = 1; lag <= maxLag + 1; ++lag) {
+      var d = energy[window] + (energy[lag + window] - energy[lag]) - 2 * real[lag];
+      sum += d;
+      difference[lag] = sum > 0 ? d * lag / sum : 1;
+    }
+
+    var best = -1;
+    for (var lag = minLag; lag <= maxLag; ++lag) {
+      if (difference[lag] < YIN_THRESHOLD) {
+        while (lag < maxLag && difference[lag + 1] < difference[lag]) {
+          ++lag;
+        }
+        best = lag;
+        break;
+      }
+      if (best < 0 || difference[lag] < difference[best]) {
+        best = lag;
+      }
+    }
+    if (best < 0 || difference[best] >= UNVOICED) {
+      return Double.NaN;
+    }
+
+    // Parabola through the raw difference around the dip
+    var period = (double) best;
+    var previous = energy[window] + energy[best - 1 + window] - energy[best - 1] - 2 * real[best - 1];
+    var current = energy[window] + energy[best + window] - energy[best] - 2 * real[best];
+    var next = energy[window] + energy[best + 1 + window] - energy[best + 1] - 2 * real[best + 1];
+    var curvature = previous - 2 * current + next;
+    if (curvature > 0) {
+      period += 0.5 * (previous - next) / curvature;
+    }
+    return sampleRate / period;
+  }
+
+  /**
+   * Median deviation (cents) of the take's pitch from its note over the
+   * sustain, NaN if the pitch could not be measured in most of it.
+   */
+  public static double measure(Take take) {
+    var expected = MIDIUtil.toFrequency(take.note);
+    var range = Math.pow(2, SEARCH_SEMITONES / 12.0);
+    var sampleRate = take.sampleRate();
+    var minLag = Math.max(2, (int) Math.floor(sampleRate / (expected * range)));
+    var maxLag = (int) Math.ceil(sampleRate * range / expected);
+    var window = Math.max(MIN_WINDOW_FRAMES, maxLag);
+    var length = window + maxLag + 2;
+
+    var start = Math.max(0, take.onsetFrame >= 0 ? take.onsetFrame : take.noteOnFrame)
+        + take.millisToFrames(ATTACK_MILLIS);
+    var end = take.noteOffFrame > start ? take.noteOffFrame : take.frames;
+    end = Math.min(end, take.frames);
+    if (end - start < length) {
+      return Double.NaN;
+    }
+
+    var estimates = SCRATCH.get().estimates;
+    var voiced = 0;
+    for (var i = 0; i < WINDOWS; ++i) {
+      var from = start + (int) ((long) (end - start - length) * i / (WINDOWS - 1));
+      var frequency = detect(take.samples, take.channels(), sampleRate, from, window, minLag, maxLag);
+      if (!Double.isNaN(frequency)) {
+        estimates[voiced++] = MIDIUtil.centsFrom(take.note, frequency);
+      }
+    }
+    if (voiced * 2 < WINDOWS) {
+      return Double.NaN;
+    }
+    Arrays.sort(estimates, 0, voiced);
+    return voiced % 2 == 1 ? estimates[voiced / 2] : (estimates[voiced / 2 - 1] + estimates[voiced / 2]) / 2;
+  }
+
+  /**
+   * Measures every take, flags those outside the tolerance for a retake and
+   * optionally writes the fine tune of the others.
+   */
+  static TakeProcessor stage(Options options) {
+    return take -> {
+      if (take.silent) {
+        return;
+      }
+      var cents = measure(take);
+      take.pitchCents = cents;
+      if (Double.isNaN(cents)) {
+        return;
+      }
+      if (Math.abs(cents) > options.toleranceCents) {
+        take.retake = true;
+        take.reason = String.format(Locale.ROOT, "pitch off by %+.1f cents", cents);
+      } else if (options.writeFineTune) {
+        take.metadata.fineTuneCents = (int) Math.max(-50, Math.min(50, Math.round(-cents)));
+      }
+    };
+  }
+}
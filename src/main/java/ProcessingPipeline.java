@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Runs the processing stages and the encoder for finished takes on a pool of
+ * worker threads, so that processing of one note overlaps the recording of the
+ * next.
+ *
+ * Takes are handed over through a bounded queue. When the workers fall behind
+ * it is the sequencing thread that waits in {@link #submit}, the line reader in
+ * {@link CaptureSession} keeps draining the device regardless.
+ *
+ * Every take is encoded into a partial file in the staging directory, forced
+ * to disk and only then renamed over its output, so neither a failed take
+ * nor a crash leaves a truncated sample behind.
+ * Takes a stage flagged with {@link Take#retake} are still written, and kept
+ * for the sequencing thread to record again. They only go into the journal
+ * once they are the {@link Take#lastAttempt}.
+ */
+public class ProcessingPipeline implements AutoCloseable {
+  private static Take END = new Take(0, 0, 0, null, null, 0);
+
+  private List<TakeProcessor> stages;
+  private TakeEncoder encoder;
+  private SessionJournal journal;
+  private Consumer<Take> onDone;
+  private BlockingQueue<Take> queue;
+  private Thread[] workers;
+  private volatile IOException failure;
+  private ConcurrentLinkedQueue<Take> retakes = new ConcurrentLinkedQueue<>();
+
+  // Submitted takes that are not written yet, guarded by this
+  private int pending;
+
+  public ProcessingPipeline(List<TakeProcessor> _stages, TakeEncoder _encoder, int workerCount, int capacity) {
+    this(_stages, _encoder, null, null, workerCount, capacity);
+  }
+
+  /**
+   * Finished takes are recorded in journal and handed to onDone once their
+   * file is in place, from the worker that wrote it. Both may be null.
+   */
+  public ProcessingPipeline(List<TakeProcessor> _stages, TakeEncoder _encoder, SessionJournal _journal,
+      Consumer<Take> _onDone, int workerCount, int capacity) {
+    this.stages = List.copyOf(_stages);
+    this.encoder = _encoder;
+    this.journal = _journal;
+    this.onDone = _onDone;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.workers = new Thread[workerCount];
+    for (var i = 0; i < workerCount; ++i) {
+      this.workers[i] = new Thread(this::work, "processing-" + i);
+      this.workers[i].setDaemon(true);
+      this.workers[i].start();
+    }
+  }
+
+  public ProcessingPipeline(List<TakeProcessor> _stages, TakeEncoder _encoder) {
+    this(_stages, _encoder, Math.max(1, Runtime.getRuntime().availableProcessors() - 1), 8);
+  }
+
+  public void submit(Take take) throws Exception {
+    this.checkFailure();
+    synchronized (this) {
+      ++this.pending;
+    }
+    this.queue.put(take);
+  }
+
+  // Waits until every take submitted so far is written
+  public void flush() throws IOException, InterruptedException {
+    synchronized (this) {
+      while (this.pending > 0) {
+        this.wait();
+      }
+    }
+    this.checkFailure();
+  }
+
+  // Takes flagged for a retake since the last call, without their samples
+  public List<Take> drainRetakes() {
+    var drained = new ArrayList<Take>();
+    for (var take = this.retakes.poll(); take != null; take = this.retakes.poll()) {
+      drained.add(take);
+    }
+    return drained;
+  }
+
+  private void work() {
+    while (true) {
+      Take take;
+      try {
+        take = this.queue.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (take == END) {
+        return;
+      }
+      try {
+        this.process(take);
+      } catch (Exception e) {
+        if (this.failure == null) {
+          this.failure = new IOException("Failed to process " + take.output, e);
+        }
+      }
+      synchronized (this) {
+        --this.pending;
+        this.notifyAll();
+      }
+    }
+  }
+
+  private void process(Take take) throws Exception {
+    var started = System.nanoTime();
+    take.samples = new float[take.length()];
+    PcmCodec.decode(take.format, take.data, 0, take.samples, take.length());
+    // The raw capture is no longer needed once decoded
+    take.data = null;
+    for (var stage : this.stages) {
+      stage.process(take);
+    }
+    if (take.stats != null) {
+      take.stats.end(SessionStats.Phase.PROCESS, started);
+      take.stats.pitchCents = take.pitchCents;
+      started = System.nanoTime();
+    }
+
+    var output = take.output;
+    var partial = SessionJournal.partial(output);
+    Files.createDirectories(partial.getParent());
+    take.output = partial;
+    try {
+      this.encoder.write(take);
+      // Otherwise the rename can reach the disk before the samples do
+      try (var channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+        channel.force(true);
+      }
+    } catch (Exception e) {
+      Files.deleteIfExists(partial);
+      throw e;
+    } finally {
+      take.output = output;
+    }
+    Files.move(partial, output, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    // A take that is recorded again is not done, a resumed run has to record it
+    var done = !take.retake || take.lastAttempt;
+    if (this.journal != null && done) {
+      this.journal.complete(take);
+    }
+    if (take.stats != null) {
+      take.stats.end(SessionStats.Phase.ENCODE, started);
+    }
+    if (this.onDone != null && done) {
+      this.onDone.accept(take);
+    }
+    if (take.retake) {
+      take.samples = null;
+      this.retakes.add(take);
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    if (this.failure != null) {
+      throw this.failure;
+    }
+  }
+
+  // Waits for every submitted take to be written
+  @Override
+  public void close() throws IOException {
+    try {
+      for (var i = 0; i < this.workers.length; ++i) {
+        this.queue.put(END);
+      }
+      for (var worker : this.workers) {
+        worker.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for takes to be written");
+    }
+    this.checkFailure();
+  }
+}
@@ -0,0 +1,85 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer byte ring.
+ *
+ * Exactly one thread may call {@link #write} and exactly one other thread may
+ * call {@link #read}. Positions only ever grow, the index into the backing
+ * array is the position masked by the (power of two) capacity. Writes are all
+ * or nothing so a ring fed with whole frames always stays frame aligned, a
+ * block that does not fit is dropped and counted as an overrun.
+ */
+public class RingBuffer {
+  private byte[] buffer;
+  private int mask;
+
+  private AtomicLong writePosition = new AtomicLong();
+  private AtomicLong readPosition = new AtomicLong();
+
+  // Only updated by the producer, read from anywhere
+  private volatile long highWaterMark;
+  private volatile long overruns;
+  private volatile long droppedBytes;
+
+  public RingBuffer(int minimumCapacity) {
+    var capacity = Integer.highestOneBit(Math.max(2, minimumCapacity - 1)) << 1;
+    this.buffer = new byte[capacity];
+    this.mask = capacity - 1;
+  }
+
+  public int capacity() {
+    return this.buffer.length;
+  }
+
+  // Bytes waiting to be read
+  public int available() {
+    return (int) (this.writePosition.getAcquire() - this.readPosition.getAcquire());
+  }
+
+  public long getHighWaterMark() {
+    return this.highWaterMark;
+  }
+
+  public long getOverruns() {
+    return this.overruns;
+  }
+
+  public long getDroppedBytes() {
+    return this.droppedBytes;
+  }
+
+  // Producer only, returns false (and counts an overrun) if the block did not fit
+  public boolean write(byte[] source, int offset, int length) {
+    var write = this.writePosition.getPlain();
+    var used = (int) (write - this.readPosition.getAcquire());
+    if (length > this.buffer.length - used) {
+      this.overruns = this.overruns + 1;
+      this.droppedBytes = this.droppedBytes + length;
+      return false;
+    }
+    var index = (int) (write & this.mask);
+    var first = Math.min(length, this.buffer.length - index);
+    System.arraycopy(source, offset, this.buffer, index, first);
+    System.arraycopy(source, offset + first, this.buffer, 0, length - first);
+    this.writePosition.setRelease(write + length);
+    if (used + length > this.highWaterMark) {
+      this.highWaterMark = used + length;
+    }
+    return true;
+  }
+
+  // Consumer only, copies up to length bytes and returns how many were read
+  public int read(byte[] destination, int offset, int length) {
+    var read = this.readPosition.getPlain();
+    var count = (int) Math.min(length, this.writePosition.getAcquire() - read);
+    if (count <= 0) {
+      return 0;
+    }
+    var index = (int) (read & this.mask);
+    var first = Math.min(count, this.buffer.length - index);
+    System.arraycopy(this.buffer, index, destination, offset, first);
+    System.arraycopy(this.buffer, 0, destination, offset + first, count - first);
+    this.readPosition.setRelease(read + count);
+    return count;
+  }
+}
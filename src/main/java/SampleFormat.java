@@ -0,0 +1,46 @@
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Sample encodings we can write.
+ */
+public enum SampleFormat {
+  PCM_16(16, false),
+  PCM_24(24, false),
+  PCM_32(32, false),
+  FLOAT_32(32, true);
+
+  public int bits;
+  public boolean isFloat;
+
+  SampleFormat(int _bits, boolean _isFloat) {
+    this.bits = _bits;
+    this.isFloat = _isFloat;
+  }
+
+  public int bytes() {
+    return this.bits / 8;
+  }
+
+  public static SampleFormat of(AudioFormat format) {
+    var encoding = format.getEncoding();
+    if (encoding == AudioFormat.Encoding.PCM_FLOAT && format.getSampleSizeInBits() == 32) {
+      return FLOAT_32;
+    }
+    if (encoding == AudioFormat.Encoding.PCM_SIGNED) {
+      switch (format.getSampleSizeInBits()) {
+        case 16:
+          return PCM_16;
+        case 24:
+          return PCM_24;
+        case 32:
+          return PCM_32;
+      }
+    }
+    throw new IllegalArgumentException("Unsupported sample format " + format);
+  }
+
+  @Override
+  public String toString() {
+    return this.isFloat ? this.bits + "-bit float" : this.bits + "-bit";
+  }
+}
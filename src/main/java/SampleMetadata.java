@@ -0,0 +1,35 @@
+/**
+ * Sampler metadata stored next to the audio, written as the smpl and inst
+ * chunks of a WAV file.
+ */
+public class SampleMetadata {
+  // MIDI note the sample plays back at its original pitch
+  public int rootNote;
+
+  // Pitch correction in cents (-50 to 50) applied on playback
+  public int fineTuneCents;
+
+  // Gain in dB applied on playback
+  public int gainDb;
+
+  public int lowNote;
+  public int highNote;
+  public int lowVelocity;
+  public int highVelocity;
+
+  // Sustain loop in frames, end is inclusive, -1 when there is no loop
+  public long loopStart = -1;
+  public long loopEnd = -1;
+
+  public SampleMetadata(int _rootNote, int _velocity) {
+    this.rootNote = _rootNote;
+    this.lowNote = _rootNote;
+    this.highNote = _rootNote;
+    this.lowVelocity = _velocity;
+    this.highVelocity = _velocity;
+  }
+
+  public boolean hasLoop() {
+    return this.loopStart >= 0 && this.loopEnd > this.loopStart;
+  }
+}
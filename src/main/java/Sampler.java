@@ -1,25 +1,32 @@
-import java.io.IOException;
 import java.nio.file.Path;
 
-import javax.sound.midi.MidiSystem;
-import javax.sound.midi.ShortMessage;
-import javax.sound.sampled.AudioFileFormat;
-import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
 import javax.sound.midi.MidiDevice;
 import javax.sound.sampled.Mixer;
-import javax.sound.sampled.TargetDataLine;
 
 public class Sampler {
 
   public static class Options {
     public MidiDevice.Info midiDevice;
     public Mixer.Info audioDevice;
+    public TailDetector.Options tail;
+
+    // Requested capture format, the closest one the device supports is used
+    public CaptureFormat format = CaptureFormat.defaults();
+
+    // Metering tap on the capture stream, may be null
+    public LevelMeter meter;
+
+    // Receives the timings and counters of the capture
+    public SessionStats stats = new SessionStats();
 
     public Options(MidiDevice.Info midiDevice, Mixer.Info audioDevice) {
+      this(midiDevice, audioDevice, TailDetector.Options.defaults());
+    }
+
+    public Options(MidiDevice.Info midiDevice, Mixer.Info audioDevice, TailDetector.Options tail) {
       this.midiDevice = midiDevice;
       this.audioDevice = audioDevice;
+      this.tail = tail;
     }
   }
 
@@ -29,115 +36,29 @@ public class Sampler {
     this.options = _options;
   }
 
-  private static AudioFormat getAudioFormat() {
-    return new AudioFormat(44100, 16, 1, true, false);
+  public CaptureFormat negotiateFormat() throws Exception {
+    return SoundUtil.negotiateCaptureFormat(this.options.audioDevice, this.options.format);
   }
 
-  public void sample(int note, int velocity, int sustain, int duration, Path outputFilePath) throws Exception {
-    var midiDevice = MidiSystem.getMidiDevice(this.options.midiDevice);
-    var audioDevice = this.options.audioDevice;
-
-    var outputFile = outputFilePath.toFile();
-    var format = getAudioFormat();
-    var line = AudioSystem.getTargetDataLine(format, audioDevice);
-
-    line.open();
-    line.start();
-    midiDevice.open();
-
-    if (!midiDevice.isOpen() || !line.isOpen()) {
-      throw new IOException("Unable to open the necessary devices");
+  // Opens both devices once, the caller is responsible for closing the session
+  public CaptureSession open() throws Exception {
+    var format = this.negotiateFormat();
+    if (!format.equals(this.options.format)) {
+      System.err.println("Capturing " + format + " instead of " + this.options.format);
     }
+    var started = this.options.stats.start();
+    var session = CaptureSession.open(this.options, format.toAudioFormat());
+    this.options.stats.end(SessionStats.Phase.OPEN, started);
+    return session;
+  }
 
-    class Wrapper extends AudioInputStream {
-
-      public Wrapper(TargetDataLine arg0) {
-        super(arg0);
-      }
-
-      private boolean shouldStartChecking = false;
-      private byte[] checkBuffer = new byte[4096];
-      private int checkBufferPos = 0;
-      private int checkBufferBytesRead = 0;
-
-      public int read() throws java.io.IOException {
-        return this.shouldStartChecking ? -1 : super.read();
-      }
-
-      public int read(byte[] arg0) throws java.io.IOException {
-        var r = super.read(arg0);
-        return r > 0 ? this.fillCheckBuffer(arg0, r) : r;
-      }
-
-      public int read(byte[] arg0, int arg1, int arg2) throws java.io.IOException {
-        var r = super.read(arg0, arg1, arg2);
-        return r > 0 ? this.fillCheckBuffer(arg0, r) : r;
-      }
-
-      private int fillCheckBuffer(byte[] data, int r) {
-        if (!shouldStartChecking)
-          return r;
-        var endPosition = checkBufferPos;
-        for (; endPosition < checkBuffer.length; ++endPosition) {
-          if (endPosition - checkBufferPos < data.length) {
-            this.checkBuffer[endPosition] = data[endPosition - checkBufferPos];
-            ++this.checkBufferBytesRead;
-          } else {
-            break;
-          }
-        }
-
-        this.checkBufferPos = endPosition % this.checkBuffer.length;
-
-        var checkSum = 0;
-        if (this.checkBufferBytesRead > this.checkBuffer.length) {
-          for (var b : this.checkBuffer) {
-            checkSum += Math.abs(b);
-          }
-          var utilization = (((float) checkSum) / (0.707 * 128 * this.checkBuffer.length));
-          return utilization > 0.01 ? r : -1;
-        }
-
-        return r;
-      }
-
-      public synchronized void waitForFinish() {
-        this.shouldStartChecking = true;
-      }
+  // Samples a single note, prefer open() when sampling more than one
+  public void sample(int note, int velocity, int sustain, int maxLength, Path outputFilePath) throws Exception {
+    try (var session = this.open();
+        var pipeline = new ProcessingPipeline(TakeProcessor.defaults(), new WaveEncoder(SampleFormat.PCM_16), 1, 1)) {
+      var take = session.record(note, velocity, sustain, maxLength);
+      take.output = outputFilePath;
+      pipeline.submit(take);
     }
-
-    var inputStream = new Wrapper(line);
-    // We have to record on a separate thread
-    var thread = new Thread(() -> {
-      try {
-        AudioSystem.write(inputStream, AudioFileFormat.Type.WAVE, outputFile);
-      } catch (IOException e) {
-        // TODO handle this better
-        System.out.println(e);
-      }
-    });
-    thread.start();
-
-    var message = new ShortMessage();
-    // Send the note that we wish to sample
-    message.setMessage(ShortMessage.NOTE_ON, 0, note, velocity);
-    var timeStamp = -1L;
-    midiDevice.getReceiver().send(message, timeStamp);
-    Thread.sleep(sustain);
-    // Turn off the note that we have started sampling
-    message.setMessage(ShortMessage.NOTE_OFF, 0, note, velocity);
-    midiDevice.getReceiver().send(message, timeStamp);
-    Thread.sleep(duration - sustain);
-    // TODO wait for the sample to reach zero volume before returning, otherwise it
-    // bleeds into the next sample
-
-    midiDevice.close();
-
-    System.out.println("Waiting for the sound to finish");
-    inputStream.waitForFinish();
-
-    thread.join();
-    line.stop();
-    line.close();
   }
 }
@@ -0,0 +1,52 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What every note of a running session is doing, written by the sampling
+ * thread and polled by the UI.
+ *
+ * Writes are a couple of atomic stores, so the sampling thread never waits
+ * on the UI. Readers compare version() to the value they saw last to skip
+ * polls where nothing changed.
+ */
+public class SamplingActivity {
+  public static enum State {
+    IDLE,
+    QUEUED,
+    RECORDING,
+    DONE
+  }
+
+  private static State[] STATES = State.values();
+
+  private AtomicIntegerArray states = new AtomicIntegerArray(128);
+  private AtomicLong version = new AtomicLong();
+
+  public void set(int note, State state) {
+    this.states.set(note, state.ordinal());
+    this.version.incrementAndGet();
+  }
+
+  public State get(int note) {
+    return STATES[this.states.get(note)];
+  }
+
+  public long version() {
+    return this.version.get();
+  }
+
+  // Marks every note of the plan as queued
+  public void queue(SamplingPlan plan) {
+    for (var note : plan.notes()) {
+      this.states.set(note, State.QUEUED.ordinal());
+    }
+    this.version.incrementAndGet();
+  }
+
+  public void reset() {
+    for (var note = 0; note < this.states.length(); ++note) {
+      this.states.set(note, State.IDLE.ordinal());
+    }
+    this.version.incrementAndGet();
+  }
+}
@@ -0,0 +1,115 @@
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * The ordered list of takes for a sampling run.
+ *
+ * Takes are recorded note by note (ascending), then by velocity layer
+ * (ascending), then by round robin. Everything is stored in flat arrays so a
+ * plan with thousands of takes is cheap to build and to walk.
+ */
+public class SamplingPlan {
+  private int[] notes;
+  private int[] velocities;
+  private int[] rounds;
+  private int roundRobins;
+
+  private SamplingPlan(int[] _notes, int[] _velocities, int[] _rounds, int _roundRobins) {
+    this.notes = _notes;
+    this.velocities = _velocities;
+    this.rounds = _rounds;
+    this.roundRobins = _roundRobins;
+  }
+
+  public static SamplingPlan compile(AutoSampler.Options options) {
+    return compile(options.startNote, options.endNote, options.interval, options.velocities, options.roundRobins);
+  }
+
+  public static SamplingPlan compile(int startNote, int endNote, int interval, int[] velocityLayers,
+      int roundRobins) {
+    if (interval <= 0) {
+      throw new IllegalArgumentException("Interval must be positive, got " + interval);
+    }
+    if (startNote < 0 || endNote > 127 || startNote > endNote) {
+      throw new IllegalArgumentException("Invalid note range " + startNote + " to " + endNote);
+    }
+    if (roundRobins <= 0) {
+      throw new IllegalArgumentException("Round robins must be positive, got " + roundRobins);
+    }
+    var layers = sortedLayers(velocityLayers);
+
+    // Every interval steps from the start, the end note is always included
+    var noteCount = (endNote - startNote) / interval + 1;
+    if (startNote + (noteCount - 1) * interval != endNote) {
+      ++noteCount;
+    }
+
+    var size = noteCount * layers.length * roundRobins;
+    var notes = new int[size];
+    var velocities = new int[size];
+    var rounds = new int[size];
+    var take = 0;
+    for (var n = 0; n < noteCount; ++n) {
+      var note = Math.min(startNote + n * interval, endNote);
+      for (var velocity : layers) {
+        for (var round = 0; round < roundRobins; ++round) {
+          notes[take] = note;
+          velocities[take] = velocity;
+          rounds[take] = round;
+          ++take;
+        }
+      }
+    }
+    return new SamplingPlan(notes, velocities, rounds, roundRobins);
+  }
+
+  private static int[] sortedLayers(int[] velocityLayers) {
+    if (velocityLayers == null || velocityLayers.length == 0) {
+      throw new IllegalArgumentException("At least one velocity layer is required");
+    }
+    var layers = Arrays.stream(velocityLayers).sorted().distinct().toArray();
+    if (layers[0] < 1 || layers[layers.length - 1] > 127) {
+      throw new IllegalArgumentException("Velocities must be between 1 and 127");
+    }
+    return layers;
+  }
+
+  // "40, 80, 127" -> [40, 80, 127]
+  public static int[] parseVelocities(String text) {
+    return Arrays.stream(text.split(","))
+        .map(String::trim)
+        .filter(s -> !s.isEmpty())
+        .mapToInt(Integer::parseInt)
+        .toArray();
+  }
+
+  public int size() {
+    return this.notes.length;
+  }
+
+  public int note(int take) {
+    return this.notes[take];
+  }
+
+  public int velocity(int take) {
+    return this.velocities[take];
+  }
+
+  public int round(int take) {
+    return this.rounds[take];
+  }
+
+  public int roundRobins() {
+    return this.roundRobins;
+  }
+
+  // Distinct notes in recording order
+  public int[] notes() {
+    return Arrays.stream(this.notes).distinct().toArray();
+  }
+
+  // Upper bound for the whole run, every take lasts at most maxLength (ms)
+  public Duration maximumDuration(int maxLength) {
+    return Duration.ofMillis((long) this.size() * maxLength);
+  }
+}
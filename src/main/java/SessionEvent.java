@@ -0,0 +1,150 @@
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Something that happened during a sampling run, published through
+ * {@link SessionEvents}.
+ *
+ * Events with a coalescing key are updates of a value that keeps changing, a
+ * subscriber that falls behind only gets the latest one for each key. All
+ * other events arrive, in the order they were published.
+ */
+public abstract class SessionEvent {
+  // Instrument of the run (see AutoSampler.sampleAll), -1 for the run as a whole
+  public int instrument;
+
+  protected SessionEvent(int _instrument) {
+    this.instrument = _instrument;
+  }
+
+  // Events with equal keys replace each other while they wait for a subscriber
+  Object coalesceKey() {
+    return null;
+  }
+
+  public static class TakeStarted extends SessionEvent {
+    public int note;
+    public int velocity;
+    public int round;
+
+    // 0 for the first recording, counts up for retakes
+    public int attempt;
+
+    public TakeStarted(int _instrument, int _note, int _velocity, int _round, int _attempt) {
+      super(_instrument);
+      this.note = _note;
+      this.velocity = _velocity;
+      this.round = _round;
+      this.attempt = _attempt;
+    }
+  }
+
+  // A take of the plan is written and in place, or an earlier run already finished it
+  public static class TakeFinished extends SessionEvent {
+    public int note;
+    public int velocity;
+    public int round;
+
+    // Takes of the whole run
+    public int current;
+    public int total;
+    public Duration remaining;
+
+    // Left as an earlier run wrote it
+    public boolean skipped;
+
+    public TakeFinished(int _instrument, int _note, int _velocity, int _round, int _current, int _total,
+        Duration _remaining, boolean _skipped) {
+      super(_instrument);
+      this.note = _note;
+      this.velocity = _velocity;
+      this.round = _round;
+      this.current = _current;
+      this.total = _total;
+      this.remaining = _remaining;
+      this.skipped = _skipped;
+    }
+  }
+
+  // A processing stage rejected a take, see Take#retake
+  public static class TakeFailed extends SessionEvent {
+    public int note;
+    public int velocity;
+    public int round;
+    public Path output;
+    public String reason;
+
+    // True if it is recorded again, false if the file of the last attempt is kept
+    public boolean retaken;
+
+    public TakeFailed(int _instrument, Take take, String _reason, boolean _retaken) {
+      super(_instrument);
+      this.note = take.note;
+      this.velocity = take.velocity;
+      this.round = take.round;
+      this.output = take.output;
+      this.reason = _reason;
+      this.retaken = _retaken;
+    }
+  }
+
+  // Level of the capture stream since the previous one (dBFS), see LevelPublisher
+  public static class Level extends SessionEvent {
+    public double peakDb;
+    public double rmsDb;
+    private Object key;
+
+    // key is the instrument's, made once with key(instrument)
+    public Level(int _instrument, double _peakDb, double _rmsDb, Object _key) {
+      super(_instrument);
+      this.peakDb = _peakDb;
+      this.rmsDb = _rmsDb;
+      this.key = _key;
+    }
+
+    static Object key(int instrument) {
+      return List.of(Level.class, instrument);
+    }
+
+    @Override
+    Object coalesceKey() {
+      return this.key;
+    }
+  }
+
+  // Time spent in one phase, see SessionStats for the totals
+  public static class PhaseTiming extends SessionEvent {
+    public SessionStats.Phase phase;
+
+    // Note of the take, -1 for phases that belong to no take
+    public int note;
+    public long nanos;
+
+    public PhaseTiming(int _instrument, SessionStats.Phase _phase, int _note, long _nanos) {
+      super(_instrument);
+      this.phase = _phase;
+      this.note = _note;
+      this.nanos = _nanos;
+    }
+
+    @Override
+    Object coalesceKey() {
+      return List.of(PhaseTiming.class, this.instrument, this.phase);
+    }
+  }
+
+  // The run is over, the last event of a run
+  public static class Finished extends SessionEvent {
+    public Duration elapsed;
+
+    // Null if every instrument finished
+    public String error;
+
+    public Finished(Duration _elapsed, String _error) {
+      super(-1);
+      this.elapsed = _elapsed;
+      this.error = _error;
+    }
+  }
+}
@@ -0,0 +1,190 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes the events of a sampling run to any number of subscribers.
+ *
+ * {@link #publish} never blocks and never calls a subscriber, it is safe on
+ * the sequencing and capture threads. Every subscriber has its own queue that
+ * is drained on the executor as fast as the subscriber requests events. While
+ * a subscriber is behind, events with a coalescing key replace the one of the
+ * same key still waiting in its queue, so levels and timings cannot pile up.
+ * The other events are a few per take, their queue only grows with the length
+ * of the run.
+ */
+public class SessionEvents implements Flow.Publisher<SessionEvent>, AutoCloseable {
+  private Executor executor;
+  private List<Delivery> deliveries = new CopyOnWriteArrayList<>();
+  private volatile boolean closed;
+
+  public SessionEvents(Executor _executor) {
+    this.executor = _executor;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super SessionEvent> subscriber) {
+    var delivery = new Delivery(subscriber);
+    this.deliveries.add(delivery);
+    subscriber.onSubscribe(delivery);
+    if (this.closed) {
+      delivery.complete();
+    }
+  }
+
+  public void publish(SessionEvent event) {
+    for (var delivery : this.deliveries) {
+      delivery.offer(event);
+    }
+  }
+
+  // Subscribers complete once they have received everything published before
+  @Override
+  public void close() {
+    this.closed = true;
+    for (var delivery : this.deliveries) {
+      delivery.complete();
+    }
+  }
+
+  // Queue entry, coalesced events are updated in place
+  private static class Slot {
+    public SessionEvent event;
+    public Object key;
+
+    public Slot(SessionEvent _event, Object _key) {
+      this.event = _event;
+      this.key = _key;
+    }
+  }
+
+  private class Delivery implements Flow.Subscription {
+    private Flow.Subscriber<? super SessionEvent> subscriber;
+
+    // Guarded by this
+    private ArrayDeque<Slot> queue = new ArrayDeque<>();
+    private HashMap<Object, Slot> waiting = new HashMap<>();
+    private long demand;
+    private boolean completed;
+    private boolean cancelled;
+    private Throwable failure;
+
+    // Drain requests, only one drain runs at a time and it loops until this is back at 0
+    private AtomicInteger work = new AtomicInteger();
+
+    public Delivery(Flow.Subscriber<? super SessionEvent> _subscriber) {
+      this.subscriber = _subscriber;
+    }
+
+    public void offer(SessionEvent event) {
+      var key = event.coalesceKey();
+      synchronized (this) {
+        if (this.cancelled || this.completed) {
+          return;
+        }
+        var slot = key != null ? this.waiting.get(key) : null;
+        if (slot != null) {
+          slot.event = event;
+          return;
+        }
+        slot = new Slot(event, key);
+        this.queue.add(slot);
+        if (key != null) {
+          this.waiting.put(key, slot);
+        }
+      }
+      this.schedule();
+    }
+
+    public void complete() {
+      synchronized (this) {
+        this.completed = true;
+      }
+      this.schedule();
+    }
+
+    @Override
+    public void request(long n) {
+      synchronized (this) {
+        if (n <= 0) {
+          this.failure = new IllegalArgumentException("Requested " + n + " events");
+        } else {
+          this.demand = this.demand + n < 0 ? Long.MAX_VALUE : this.demand + n;
+        }
+      }
+      this.schedule();
+    }
+
+    @Override
+    public void cancel() {
+      synchronized (this) {
+        this.cancelled = true;
+        this.queue.clear();
+        this.waiting.clear();
+      }
+      SessionEvents.this.deliveries.remove(this);
+    }
+
+    private void schedule() {
+      if (this.work.getAndIncrement() == 0) {
+        SessionEvents.this.executor.execute(this::drain);
+      }
+    }
+
+    private void drain() {
+      var missed = 1;
+      do {
+        while (true) {
+          SessionEvent next = null;
+          Throwable failure = null;
+          var done = false;
+          synchronized (this) {
+            if (this.cancelled) {
+              break;
+            }
+            if (this.failure != null) {
+              failure = this.failure;
+            } else if (this.demand > 0 && !this.queue.isEmpty()) {
+              var slot = this.queue.poll();
+              if (slot.key != null) {
+                this.waiting.remove(slot.key);
+              }
+              next = slot.event;
+              this.demand -= 1;
+            } else if (this.queue.isEmpty() && this.completed) {
+              done = true;
+            }
+            if (failure != null || done) {
+              this.cancelled = true;
+            }
+          }
+          if (failure != null) {
+            SessionEvents.this.deliveries.remove(this);
+            this.subscriber.onError(failure);
+            break;
+          }
+          if (done) {
+            SessionEvents.this.deliveries.remove(this);
+            this.subscriber.onComplete();
+            break;
+          }
+          if (next == null) {
+            break;
+          }
+          try {
+            this.subscriber.onNext(next);
+          } catch (RuntimeException e) {
+            // A subscriber that throws is dropped, the run carries on
+            this.cancel();
+            this.subscriber.onError(e);
+          }
+        }
+        missed = this.work.addAndGet(-missed);
+      } while (missed != 0);
+    }
+  }
+}
@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only record of the takes a session has finished, kept next to the
+ * samples so that an interrupted run can be resumed.
+ *
+ * <pre>
+ * session	44100Hz mono 16-bit	24-bit
+ * done	sample_60_127.wav	60	127	0	264044	1a2b3c4d
+ * </pre>
+ *
+ * The first line describes the formats, a journal written with different
+ * formats is not resumed. Every finished take adds a done line with its file
+ * size and CRC32C once it has been renamed into place, and the line is forced
+ * to disk before the next take is acknowledged. A torn last line after a
+ * crash is simply ignored.
+ */
+public class SessionJournal implements AutoCloseable {
+  static String FILE_NAME = "session.journal";
+
+  // Suffix of takes still being written, they are renamed once complete
+  static String PARTIAL_SUFFIX = ".partial";
+
+  // Where partial files live, inside the output directory so the rename stays
+  // on one file system and atomic
+  static String STAGING_DIRECTORY = ".staging";
+
+  private static class Entry {
+    public long size;
+    public long checksum;
+
+    // As written to the journal
+    public String line;
+
+    public Entry(long _size, long _checksum, String _line) {
+      this.size = _size;
+      this.checksum = _checksum;
+      this.line = _line;
+    }
+  }
+
+  private FileChannel channel;
+  private Map<String, Entry> done = new HashMap<>();
+
+  private SessionJournal(FileChannel _channel) {
+    this.channel = _channel;
+  }
+
+  /**
+   * Opens the journal of directory. When resuming, takes recorded by an
+   * earlier run with the same formats are kept, otherwise the journal starts
+   * empty. Leftover partial files are removed either way.
+   */
+  public static SessionJournal open(Path directory, String session, boolean resume) throws IOException {
+    Files.createDirectories(directory.resolve(STAGING_DIRECTORY));
+    var path = directory.resolve(FILE_NAME);
+    var previous = new HashMap<String, Entry>();
+    if (resume && Files.exists(path)) {
+      previous = read(path, session);
+    }
+
+    try (var files = Files.newDirectoryStream(directory.resolve(STAGING_DIRECTORY))) {
+      for (var file : files) {
+        Files.deleteIfExists(file);
+      }
+    }
+
+    // Rewritten compacted next to the old one and swapped in, so a crash
+    // here cannot lose the takes of the previous run
+    var compacted = partial(path);
+    try (var journal = new SessionJournal(FileChannel.open(compacted, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+      journal.append("session\t" + session);
+      for (var entry : previous.values()) {
+        journal.append(entry.line);
+      }
+      journal.channel.force(false);
+    }
+    Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+    var journal = new SessionJournal(FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+    journal.done.putAll(previous);
+    return journal;
+  }
+
+  private static HashMap<String, Entry> read(Path path, String session) throws IOException {
+    var entries = new HashMap<String, Entry>();
+    var lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+    if (lines.isEmpty() || !lines.get(0).equals("session\t" + session)) {
+      System.err.println("Not resuming, the previous session used different formats");
+      return entries;
+    }
+    for (var line : lines.subList(1, lines.size())) {
+      var fields = line.split("\t");
+      if (fields.length != 7 || !fields[0].equals("done")) {
+        continue;
+      }
+      try {
+        entries.put(fields[1], new Entry(Long.parseLong(fields[5]), Long.parseUnsignedLong(fields[6], 16), line));
+      } catch (NumberFormatException e) {
+        // Torn line from a crash, the take is simply recorded again
+      }
+    }
+    return entries;
+  }
+
+  private void append(String line) throws IOException {
+    var buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+    while (buffer.hasRemaining()) {
+      this.channel.write(buffer);
+    }
+  }
+
+  // True if the take's file was completed by an earlier run and is still intact
+  public boolean isDone(Path output) throws IOException {
+    Entry entry;
+    synchronized (this) {
+      entry = this.done.get(output.getFileName().toString());
+    }
+    if (entry == null) {
+      return false;
+    }
+    try {
+      return Files.size(output) == entry.size && checksum(output) == entry.checksum;
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+  }
+
+  // Where a take is written before it is complete
+  public static Path partial(Path output) {
+    return output.resolveSibling(STAGING_DIRECTORY).resolve(output.getFileName() + PARTIAL_SUFFIX);
+  }
+
+  // Records a take whose file has been renamed into place, called from the processing workers
+  public void complete(Take take) throws IOException {
+    var name = take.output.getFileName().toString();
+    var size = Files.size(take.output);
+    var checksum = checksum(take.output);
+    var line = String.format("done\t%s\t%d\t%d\t%d\t%d\t%x", name, take.note, take.velocity, take.round, size,
+        checksum);
+    synchronized (this) {
+      this.append(line);
+      this.channel.force(false);
+      this.done.put(name, new Entry(size, checksum, line));
+    }
+  }
+
+  private static long checksum(Path path) throws IOException {
+    var crc = new CRC32C();
+    var buffer = new byte[64 * 1024];
+    try (InputStream input = Files.newInputStream(path)) {
+      for (var read = input.read(buffer); read > 0; read = input.read(buffer)) {
+        crc.update(buffer, 0, read);
+      }
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Renames directory out of the way for a clean run, a single rename instead
+   * of deleting the old samples file by file. Returns where it went, or null
+   * if there was nothing to move.
+   */
+  public static Path moveAside(Path directory) throws IOException {
+    if (!Files.exists(directory)) {
+      return null;
+    }
+    var stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+    var target = directory.resolveSibling(directory.getFileName() + "-" + stamp);
+    for (var i = 2; Files.exists(target); ++i) {
+      target = directory.resolveSibling(directory.getFileName() + "-" + stamp + "-" + i);
+    }
+    return Files.move(directory, target, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.channel.close();
+  }
+}
@@ -0,0 +1,371 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.sound.sampled.AudioFormat;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Timings and counters of a sampling session, cheap enough to always be on.
+ *
+ * Every phase is timed with System.nanoTime and added up per phase, each take
+ * also gets a record of its own. The same measurements are emitted as JFR
+ * events, which cost nothing unless a recording is running
+ * (-XX:StartFlightRecording). At the end the session is written to
+ * session-report.json and the takes to session-report.csv in the output
+ * directory.
+ */
+public class SessionStats {
+  public static String JSON_FILE_NAME = "session-report.json";
+  public static String CSV_FILE_NAME = "session-report.csv";
+
+  public enum Phase {
+    // Opening the MIDI device and the audio line
+    OPEN,
+    // Latency calibration probes
+    CALIBRATE,
+    // Sending the note on
+    MIDI,
+    // Note on until the note off went out
+    SUSTAIN,
+    // Note off until the tail detector ended the take
+    TAIL,
+    // Waiting for room in the processing queue
+    QUEUE,
+    // Decoding and the processing stages
+    PROCESS,
+    // Encoding, renaming into place and journaling
+    ENCODE,
+    // Waiting for the last takes and closing the devices
+    CLOSE
+  }
+
+  public static class TakeStats {
+    public int note;
+    public int velocity;
+    public int round;
+
+    // 0 for the first recording, counts up for every retake
+    public int attempt;
+
+    public String file;
+    public long capturedBytes;
+    public int frames;
+    public int noteOnFrame;
+    public int noteOffFrame;
+
+    // Most bytes seen waiting in the line's buffer during the take
+    public long lineHighWater;
+
+    // Reads that found the line's buffer full, so the device may have dropped audio
+    public long lineOverruns;
+
+    // Blocks the capture ring had no room for, and the frames lost with them
+    public long ringOverruns;
+    public long droppedFrames;
+
+    public double pitchCents = Double.NaN;
+
+    public long[] nanos = new long[Phase.values().length];
+
+    private SessionStats session;
+
+    private TakeStats(SessionStats _session) {
+      this.session = _session;
+    }
+
+    // Adds the time since started to phase, for this take and the session
+    public void end(Phase phase, long started) {
+      var elapsed = System.nanoTime() - started;
+      this.nanos[phase.ordinal()] += elapsed;
+      this.session.add(phase, elapsed, this.note);
+    }
+  }
+
+  @Name("autosampler.Phase")
+  @Label("Sampling Phase")
+  @Category("AutoSampler")
+  static class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Note")
+    int note;
+
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+  }
+
+  @Name("autosampler.Take")
+  @Label("Take Captured")
+  @Category("AutoSampler")
+  static class TakeEvent extends Event {
+    @Label("Note")
+    int note;
+
+    @Label("Velocity")
+    int velocity;
+
+    @Label("Captured")
+    @DataAmount
+    long capturedBytes;
+
+    @Label("Line High Water")
+    @DataAmount
+    long lineHighWater;
+
+    @Label("Line Overruns")
+    long lineOverruns;
+
+    @Label("Ring Overruns")
+    long ringOverruns;
+  }
+
+  private long startedNanos = System.nanoTime();
+  private Instant started = Instant.now();
+  private long finishedNanos;
+
+  private AtomicLongArray counts = new AtomicLongArray(Phase.values().length);
+  private AtomicLongArray totals = new AtomicLongArray(Phase.values().length);
+  private AtomicLongArray maxima = new AtomicLongArray(Phase.values().length);
+
+  // Guarded by this
+  private List<TakeStats> takes = new ArrayList<>();
+
+  // Set when capture starts
+  private AudioFormat format;
+  private int lineBufferBytes;
+  private RingBuffer ring;
+
+  // Written by the capture reader, the take counters are also cleared when a take starts
+  private volatile long lineHighWater;
+  private volatile long lineOverruns;
+  private volatile long takeLineHighWater;
+  private volatile long takeLineOverruns;
+
+  // Receives phase timings as they happen, may be null
+  private SessionEvents events;
+  private int instrument;
+
+  // Starts timing a phase, hand the result to end()
+  public long start() {
+    return System.nanoTime();
+  }
+
+  // Adds the time since started to a phase that belongs to no take
+  public void end(Phase phase, long started) {
+    this.add(phase, System.nanoTime() - started, -1);
+  }
+
+  private void add(Phase phase, long elapsed, int note) {
+    var index = phase.ordinal();
+    this.counts.incrementAndGet(index);
+    this.totals.addAndGet(index, elapsed);
+    this.maxima.accumulateAndGet(index, elapsed, Math::max);
+    var event = new PhaseEvent();
+    if (event.shouldCommit()) {
+      event.phase = phase.name();
+      event.note = note;
+      event.elapsed = elapsed;
+      event.commit();
+    }
+    if (this.events != null) {
+      this.events.publish(new SessionEvent.PhaseTiming(this.instrument, phase, note, elapsed));
+    }
+  }
+
+  // Publishes timings of the run's instrument from now on
+  void publishTo(SessionEvents _events, int _instrument) {
+    this.events = _events;
+    this.instrument = _instrument;
+  }
+
+  // Called once the line is open, ring is the buffer between the capture threads
+  void captureStarted(AudioFormat _format, int _lineBufferBytes, RingBuffer _ring) {
+    this.format = _format;
+    this.lineBufferBytes = _lineBufferBytes;
+    this.ring = _ring;
+  }
+
+  // Capture reader only, waiting is what line.available() returned before a read
+  void lineFill(int waiting) {
+    if (waiting > this.lineHighWater) {
+      this.lineHighWater = waiting;
+    }
+    if (waiting > this.takeLineHighWater) {
+      this.takeLineHighWater = waiting;
+    }
+    if (waiting >= this.lineBufferBytes) {
+      this.lineOverruns = this.lineOverruns + 1;
+      this.takeLineOverruns = this.takeLineOverruns + 1;
+    }
+  }
+
+  // Starts the record of a take, the line counters of the take start from here
+  public TakeStats takeStarted(int note, int velocity) {
+    var take = new TakeStats(this);
+    take.note = note;
+    take.velocity = velocity;
+    take.ringOverruns = this.ring != null ? this.ring.getOverruns() : 0;
+    take.droppedFrames = this.ring != null ? this.ring.getDroppedBytes() / this.format.getFrameSize() : 0;
+    this.takeLineHighWater = 0;
+    this.takeLineOverruns = 0;
+    synchronized (this) {
+      this.takes.add(take);
+    }
+    return take;
+  }
+
+  // Closes the capture part of a take's record
+  public void takeCaptured(TakeStats take, Take captured) {
+    take.frames = captured.frames;
+    take.capturedBytes = captured.data.length;
+    take.noteOnFrame = captured.noteOnFrame;
+    take.noteOffFrame = captured.noteOffFrame;
+    take.lineHighWater = this.takeLineHighWater;
+    take.lineOverruns = this.takeLineOverruns;
+    if (this.ring != null) {
+      take.ringOverruns = this.ring.getOverruns() - take.ringOverruns;
+      take.droppedFrames = this.ring.getDroppedBytes() / this.format.getFrameSize() - take.droppedFrames;
+    }
+    var event = new TakeEvent();
+    if (event.shouldCommit()) {
+      event.note = take.note;
+      event.velocity = take.velocity;
+      event.capturedBytes = take.capturedBytes;
+      event.lineHighWater = take.lineHighWater;
+      event.lineOverruns = take.lineOverruns;
+      event.ringOverruns = take.ringOverruns;
+      event.commit();
+    }
+  }
+
+  public void finish() {
+    this.finishedNanos = System.nanoTime();
+  }
+
+  public long getLineOverruns() {
+    return this.lineOverruns;
+  }
+
+  public long getRingOverruns() {
+    return this.ring != null ? this.ring.getOverruns() : 0;
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  private static String quote(String value) {
+    if (value == null) {
+      return "null";
+    }
+    return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  private static String number(double value) {
+    return Double.isNaN(value) ? "null" : String.format(Locale.ROOT, "%.3f", value);
+  }
+
+  String toJson() {
+    var json = new StringBuilder();
+    var elapsed = (this.finishedNanos != 0 ? this.finishedNanos : System.nanoTime()) - this.startedNanos;
+    json.append("{\n");
+    json.append("  \"started\": ").append(quote(this.started.toString())).append(",\n");
+    json.append("  \"seconds\": ").append(number(elapsed / 1e9)).append(",\n");
+    json.append("  \"format\": ").append(quote(this.format != null ? this.format.toString() : null)).append(",\n");
+    json.append("  \"line\": { \"bufferBytes\": ").append(this.lineBufferBytes)
+        .append(", \"highWaterBytes\": ").append(this.lineHighWater)
+        .append(", \"overruns\": ").append(this.lineOverruns).append(" },\n");
+    if (this.ring != null) {
+      json.append("  \"ring\": { \"capacityBytes\": ").append(this.ring.capacity())
+          .append(", \"highWaterBytes\": ").append(this.ring.getHighWaterMark())
+          .append(", \"overruns\": ").append(this.ring.getOverruns())
+          .append(", \"droppedBytes\": ").append(this.ring.getDroppedBytes()).append(" },\n");
+    }
+    json.append("  \"phases\": {");
+    var phases = Phase.values();
+    for (var i = 0; i < phases.length; ++i) {
+      var count = this.counts.get(i);
+      json.append(i == 0 ? "\n" : ",\n");
+      json.append("    ").append(quote(phases[i].name().toLowerCase(Locale.ROOT)))
+          .append(": { \"count\": ").append(count)
+          .append(", \"totalMillis\": ").append(number(millis(this.totals.get(i))))
+          .append(", \"meanMillis\": ").append(number(count == 0 ? 0 : millis(this.totals.get(i) / count)))
+          .append(", \"maxMillis\": ").append(number(millis(this.maxima.get(i)))).append(" }");
+    }
+    json.append("\n  },\n");
+
+    List<TakeStats> takes;
+    synchronized (this) {
+      takes = new ArrayList<>(this.takes);
+    }
+    // Calibration probes are captured too but never written
+    var written = 0;
+    var capturedBytes = 0L;
+    var retakes = 0;
+    for (var take : takes) {
+      capturedBytes += take.capturedBytes;
+      written += take.file != null ? 1 : 0;
+      retakes += take.attempt > 0 ? 1 : 0;
+    }
+    json.append("  \"takes\": ").append(written).append(",\n");
+    json.append("  \"probes\": ").append(takes.size() - written).append(",\n");
+    json.append("  \"retakes\": ").append(retakes).append(",\n");
+    json.append("  \"capturedBytes\": ").append(capturedBytes).append("\n");
+    json.append("}\n");
+    return json.toString();
+  }
+
+  String toCsv() {
+    var csv = new StringBuilder();
+    csv.append("file,note,velocity,round,attempt,frames,captured_bytes,note_on_frame,note_off_frame,"
+        + "line_high_water,line_overruns,ring_overruns,dropped_frames,pitch_cents");
+    for (var phase : Phase.values()) {
+      csv.append(',').append(phase.name().toLowerCase(Locale.ROOT)).append("_ms");
+    }
+    csv.append('\n');
+    synchronized (this) {
+      for (var take : this.takes) {
+        csv.append(take.file != null ? take.file : "").append(',').append(take.note).append(',')
+            .append(take.velocity).append(',').append(take.round).append(',').append(take.attempt).append(',')
+            .append(take.frames).append(',').append(take.capturedBytes).append(',').append(take.noteOnFrame)
+            .append(',').append(take.noteOffFrame).append(',').append(take.lineHighWater).append(',')
+            .append(take.lineOverruns).append(',').append(take.ringOverruns).append(',')
+            .append(take.droppedFrames).append(',')
+            .append(Double.isNaN(take.pitchCents) ? "" : number(take.pitchCents));
+        for (var nanos : take.nanos) {
+          csv.append(',').append(number(millis(nanos)));
+        }
+        csv.append('\n');
+      }
+    }
+    return csv.toString();
+  }
+
+  // Writes both report files into directory, each replaced in one step
+  public void writeReport(Path directory) throws IOException {
+    write(directory.resolve(JSON_FILE_NAME), this.toJson());
+    write(directory.resolve(CSV_FILE_NAME), this.toCsv());
+  }
+
+  private static void write(Path path, String content) throws IOException {
+    var partial = SessionJournal.partial(path);
+    Files.writeString(partial, content, StandardCharsets.UTF_8);
+    Files.move(partial, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+}
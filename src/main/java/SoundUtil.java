@@ -1,13 +1,23 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.stream.Stream;
 
+import com.sun.media.sound.AudioSynthesizer;
+
 import javax.sound.midi.MidiDevice;
 import javax.sound.midi.MidiSystem;
 import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.Synthesizer;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.DataLine;
 import javax.sound.sampled.Mixer;
+import javax.sound.sampled.TargetDataLine;
 
 public class SoundUtil {
+  static int[] SAMPLE_RATES = new int[] { 44100, 48000, 88200, 96000, 176400, 192000 };
 
   static boolean hasTargetDataLines(Mixer.Info device) {
     var mixer = AudioSystem.getMixer(device);
@@ -23,20 +33,69 @@ public class SoundUtil {
   static boolean hasMIDIOutput(MidiDevice.Info midiDevice) {
     try {
       var info = MidiSystem.getMidiDevice(midiDevice);
-      if (info.getMaxReceivers() == 0) {
-        return false;
-      }
-      // The MidiOutDevice class isnt publicly exported, and i couldnt
-      // find another way to see if a device was a real device and not
-      // just a virtual device like the Java synthesizer
-      var deviceClass = info.getClass();
-      return deviceClass.getSimpleName().contains("MidiOutDevice");
+      return info.getMaxReceivers() != 0 && isHardwareOutput(info);
     } catch (MidiUnavailableException e) {
       // TODO log or handle other way
       return false;
     }
   }
 
+  // Synthesizers and sequencers are the software devices Java Sound provides,
+  // everything else that takes receivers is a port to the outside world
+  static boolean isHardwareOutput(MidiDevice device) {
+    return !(device instanceof Synthesizer) && !(device instanceof Sequencer);
+  }
+
+  // Synthesizers that can render into a stream instead of a line, see SynthSource.
+  // Without the add-exports the JVM refuses to even look at the class
+  static boolean canRender(MidiDevice device) {
+    var exported = Synthesizer.class.getModule().isExported("com.sun.media.sound", SoundUtil.class.getModule());
+    return exported && device instanceof AudioSynthesizer;
+  }
+
+  static boolean supportsCapture(Mixer.Info device, CaptureFormat format) {
+    var mixer = AudioSystem.getMixer(device);
+    return mixer.isLineSupported(new DataLine.Info(TargetDataLine.class, format.toAudioFormat()));
+  }
+
+  /**
+   * Finds the capture format closest to the requested one that the device
+   * supports. The sample rate is kept if at all possible, then the channel
+   * count, the bit depth is the first thing to give way.
+   */
+  static CaptureFormat negotiateCaptureFormat(Mixer.Info device, CaptureFormat requested) throws IOException {
+    if (supportsCapture(device, requested)) {
+      return requested;
+    }
+    var rates = new ArrayList<Integer>();
+    rates.add(requested.sampleRate);
+    Arrays.stream(SAMPLE_RATES).boxed()
+        .filter(rate -> rate != requested.sampleRate)
+        .sorted(Comparator.comparingInt(rate -> Math.abs(rate - requested.sampleRate)))
+        .forEach(rates::add);
+    var channelCounts = new int[] { requested.channels, requested.channels == 1 ? 2 : 1 };
+    var sampleFormats = new ArrayList<SampleFormat>();
+    sampleFormats.add(requested.sampleFormat);
+    for (var candidate : new SampleFormat[] { SampleFormat.PCM_24, SampleFormat.PCM_32, SampleFormat.FLOAT_32,
+        SampleFormat.PCM_16 }) {
+      if (candidate != requested.sampleFormat) {
+        sampleFormats.add(candidate);
+      }
+    }
+
+    for (var rate : rates) {
+      for (var channels : channelCounts) {
+        for (var sampleFormat : sampleFormats) {
+          var candidate = new CaptureFormat(rate, channels, sampleFormat);
+          if (supportsCapture(device, candidate)) {
+            return candidate;
+          }
+        }
+      }
+    }
+    throw new IOException(device.getName() + " does not support capturing " + requested);
+  }
+
   static Mixer.Info[] audioInputs() {
     return Stream.of(AudioSystem.getMixerInfo()).filter(x -> SoundUtil.hasTargetDataLines(x))
         .toArray(s -> new Mixer.Info[s]);
@@ -48,4 +107,15 @@ public class SoundUtil {
     })
         .toArray(s -> new MidiDevice.Info[s]);
   }
+
+  // Software synthesizers that can render offline
+  static MidiDevice.Info[] softSynthesizers() {
+    return Stream.of(MidiSystem.getMidiDeviceInfo()).filter(info -> {
+      try {
+        return canRender(MidiSystem.getMidiDevice(info));
+      } catch (MidiUnavailableException e) {
+        return false;
+      }
+    }).toArray(MidiDevice.Info[]::new);
+  }
 }
@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import com.sun.media.sound.AudioSynthesizer;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ * Renders takes on a software synthesizer instead of recording them.
+ *
+ * The audio is read straight from AudioSynthesizer.openStream, no line is
+ * involved, so notes render as fast as the CPU allows and the same notes
+ * always give the same audio. The takes look just like the ones of a
+ * {@link CaptureSession}: the tail detector decides where they end and they
+ * go through the same processing and encoding.
+ */
+public class SynthSource implements TakeSource {
+  public static class Options {
+    // Synthesizer to render on, null for the default one
+    public MidiDevice.Info synthesizer;
+
+    // Soundbank (SF2 or DLS) loaded over the synthesizer's own instruments, may be null
+    public Path soundbank;
+
+    // Bank and program selected before the first note
+    public int bank;
+    public int program;
+
+    public Options(MidiDevice.Info _synthesizer) {
+      this.synthesizer = _synthesizer;
+    }
+  }
+
+  private static int BLOCK_FRAMES = 512;
+
+  private AudioSynthesizer synthesizer;
+  private AudioInputStream stream;
+  private Receiver receiver;
+  private AudioFormat format;
+  private TailDetector detector;
+  private SessionStats stats;
+  private LevelMeter meter;
+  private byte[] block;
+  private byte[] take = new byte[0];
+  private int takeLength;
+
+  private SynthSource(AudioSynthesizer _synthesizer, AudioInputStream _stream, AudioFormat _format,
+      TailDetector.Options tail, LevelMeter _meter, SessionStats _stats) throws Exception {
+    this.synthesizer = _synthesizer;
+    this.stream = _stream;
+    this.format = _format;
+    this.detector = new TailDetector(tail, _format);
+    this.stats = _stats;
+    this.meter = _meter;
+    this.block = new byte[BLOCK_FRAMES * _format.getFrameSize()];
+    this.receiver = _synthesizer.getReceiver();
+  }
+
+  // meter, which may be null, is fed the rendered audio like the capture stream
+  public static SynthSource open(Options options, AudioFormat format, TailDetector.Options tail, LevelMeter meter,
+      SessionStats stats) throws Exception {
+    var started = stats.start();
+    var device = options.synthesizer != null ? MidiSystem.getMidiDevice(options.synthesizer)
+        : MidiSystem.getSynthesizer();
+    if (!SoundUtil.canRender(device)) {
+      throw new IOException(device.getDeviceInfo().getName()
+          + " cannot render offline (run with --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED)");
+    }
+    var synthesizer = (AudioSynthesizer) device;
+    // Opens the synthesizer without a line, it only runs when the stream is read
+    var stream = synthesizer.openStream(format, null);
+    try {
+      if (options.soundbank != null) {
+        var soundbank = MidiSystem.getSoundbank(options.soundbank.toFile());
+        if (!synthesizer.loadAllInstruments(soundbank)) {
+          throw new IOException("Could not load the instruments of " + options.soundbank);
+        }
+      }
+      var source = new SynthSource(synthesizer, stream, format, tail, meter, stats);
+      if (meter != null) {
+        meter.start(format);
+      }
+      // No line and no ring buffer, nothing can overrun
+      stats.captureStarted(format, 0, null);
+      source.receiver.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 0, options.bank >> 7), -1);
+      source.receiver.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 32, options.bank & 127), -1);
+      source.receiver.send(new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, options.program, 0), -1);
+      stats.end(SessionStats.Phase.OPEN, started);
+      return source;
+    } catch (Exception e) {
+      synthesizer.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public AudioFormat getFormat() {
+    return this.format;
+  }
+
+  // Renders frames into the take, as long as the tail detector lets it grow
+  private void render(long frames) throws IOException {
+    var frameSize = this.format.getFrameSize();
+    for (var remaining = frames; remaining > 0 && !this.detector.isFinished(); remaining -= BLOCK_FRAMES) {
+      var length = (int) Math.min(remaining, BLOCK_FRAMES) * frameSize;
+      for (var read = 0; read < length;) {
+        var count = this.stream.read(this.block, read, length - read);
+        if (count < 0) {
+          throw new IOException("Synthesizer stream ended");
+        }
+        read += count;
+      }
+      if (this.meter != null) {
+        this.meter.process(this.block, 0, length);
+      }
+      var keep = Math.min(this.detector.process(this.block, 0, length), this.take.length - this.takeLength);
+      System.arraycopy(this.block, 0, this.take, this.takeLength, keep);
+      this.takeLength += keep;
+    }
+  }
+
+  @Override
+  public Take record(int note, int velocity, int sustain, int maxLength) throws Exception {
+    var takeStats = this.stats.takeStarted(note, velocity);
+    var frameSize = this.format.getFrameSize();
+    var maxFrames = (long) Math.ceil(this.format.getFrameRate() * Math.max(sustain, maxLength) / 1000.0);
+    if (this.take.length < maxFrames * frameSize) {
+      this.take = new byte[(int) Math.min(maxFrames * frameSize, Integer.MAX_VALUE - 8)];
+    }
+    this.takeLength = 0;
+    this.detector.reset(Math.max(sustain, maxLength));
+    if (this.meter != null) {
+      this.meter.markTake();
+    }
+
+    var started = this.stats.start();
+    // Events without a timestamp apply from the next rendered block on
+    this.receiver.send(new ShortMessage(ShortMessage.NOTE_ON, 0, note, velocity), -1);
+    var sustainFrames = Math.round(this.format.getFrameRate() * sustain / 1000.0);
+    this.render(sustainFrames);
+    takeStats.end(SessionStats.Phase.SUSTAIN, started);
+
+    started = this.stats.start();
+    this.receiver.send(new ShortMessage(ShortMessage.NOTE_OFF, 0, note, velocity), -1);
+    this.detector.arm();
+    this.render(Long.MAX_VALUE);
+    takeStats.end(SessionStats.Phase.TAIL, started);
+
+    var frames = (int) Math.min(this.takeLength / frameSize, this.detector.getEndFrame());
+    var take = new Take(note, velocity, 0, this.format, Arrays.copyOf(this.take, frames * frameSize), frames);
+    take.noteOnFrame = 0;
+    take.noteOffFrame = (int) Math.min(sustainFrames, frames);
+    take.latencyFrames = 0;
+    take.stats = takeStats;
+    this.stats.takeCaptured(takeStats, take);
+    return take;
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.receiver.close();
+    this.stream.close();
+    this.synthesizer.close();
+  }
+}
@@ -0,0 +1,199 @@
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Streaming envelope follower that decides when a take has finished ringing
+ * out.
+ *
+ * Frames are decoded as they arrive and folded into short analysis windows, a
+ * take ends once every window after note off has stayed below the threshold
+ * for the hold time, or once the maximum length is reached. Nothing is
+ * allocated after construction so it can run on the capture thread.
+ */
+public class TailDetector {
+
+  public static class Options {
+    // Level (dBFS peak) below which the release is considered to have decayed
+    public double thresholdDb;
+
+    // Time the signal has to stay below the threshold before we stop (ms)
+    public int holdMillis;
+
+    public Options(double thresholdDb, int holdMillis) {
+      this.thresholdDb = thresholdDb;
+      this.holdMillis = holdMillis;
+    }
+
+    public static Options defaults() {
+      return new Options(-60, 250);
+    }
+  }
+
+  private static int WINDOW_MILLIS = 5;
+  private static int SCRATCH_FRAMES = 256;
+
+  private Options options;
+  private AudioFormat format;
+  private int channels;
+  private int frameSize;
+  private double sampleRate;
+  private float[] scratch;
+  private int windowFrames;
+  private double threshold;
+
+  // Per take state
+  private long frames;
+  private long armedFrame;
+  private long maxFrames;
+  private long quietStart;
+  private long endFrame;
+  private boolean finished;
+
+  // Current analysis window
+  private int windowPosition;
+  private double windowPeak;
+  private double windowSquares;
+
+  // Last completed window
+  private double peak;
+  private double rms;
+
+  public TailDetector(Options _options, AudioFormat format) {
+    // Fails early for formats we cannot decode
+    SampleFormat.of(format);
+    this.options = _options;
+    this.format = format;
+    this.channels = format.getChannels();
+    this.frameSize = format.getFrameSize();
+    this.sampleRate = format.getSampleRate();
+    this.scratch = new float[SCRATCH_FRAMES * this.channels];
+    this.windowFrames = Math.max(1, (int) (this.sampleRate * WINDOW_MILLIS / 1000));
+    this.threshold = Math.pow(10, _options.thresholdDb / 20);
+    this.reset(Integer.MAX_VALUE);
+  }
+
+  // Starts a new take that may not run longer than maxLength (ms)
+  public void reset(int maxLengthMillis) {
+    this.frames = 0;
+    this.armedFrame = Long.MAX_VALUE;
+    this.maxFrames = this.millisToFrames(maxLengthMillis);
+    this.quietStart = -1;
+    this.endFrame = -1;
+    this.finished = false;
+    this.windowPosition = 0;
+    this.windowPeak = 0;
+    this.windowSquares = 0;
+    this.peak = 0;
+    this.rms = 0;
+  }
+
+  // Called at note off, only silence from here on can end the take
+  public void arm() {
+    this.armedFrame = this.frames;
+  }
+
+  public boolean isFinished() {
+    return this.finished;
+  }
+
+  // Frame (relative to the reset) at which the take should be cut
+  public long getEndFrame() {
+    return this.endFrame;
+  }
+
+  public long getFrames() {
+    return this.frames;
+  }
+
+  public double getPeakDb() {
+    return toDb(this.peak);
+  }
+
+  public double getRmsDb() {
+    return toDb(this.rms);
+  }
+
+  /**
+   * Feeds raw interleaved frames, returns the number of bytes that belong to
+   * the take. Anything after the returned length was captured after the take
+   * ended.
+   */
+  public int process(byte[] data, int offset, int length) {
+    if (this.finished) {
+      return 0;
+    }
+    var totalFrames = length / this.frameSize;
+    var consumed = 0;
+    while (consumed < totalFrames) {
+      var count = Math.min(SCRATCH_FRAMES, totalFrames - consumed);
+      PcmCodec.decode(this.format, data, offset + consumed * this.frameSize, this.scratch, count * this.channels);
+      var used = this.analyze(count);
+      consumed += used;
+      if (this.finished) {
+        break;
+      }
+    }
+    return consumed * this.frameSize;
+  }
+
+  // Runs the envelope over count decoded frames, returns how many belong to the take
+  private int analyze(int count) {
+    var index = 0;
+    for (var frame = 0; frame < count; ++frame) {
+      for (var channel = 0; channel < this.channels; ++channel) {
+        var sample = this.scratch[index++];
+        var magnitude = Math.abs(sample);
+        if (magnitude > this.windowPeak) {
+          this.windowPeak = magnitude;
+        }
+        this.windowSquares += sample * sample;
+      }
+      ++this.frames;
+      if (++this.windowPosition == this.windowFrames) {
+        this.finishWindow();
+      }
+      if (this.frames >= this.maxFrames) {
+        this.finish(this.maxFrames);
+      }
+      if (this.finished) {
+        return frame + 1;
+      }
+    }
+    return count;
+  }
+
+  private void finishWindow() {
+    this.peak = this.windowPeak;
+    this.rms = Math.sqrt(this.windowSquares / (this.windowPosition * this.channels));
+    var windowStart = this.frames - this.windowPosition;
+    this.windowPosition = 0;
+    this.windowPeak = 0;
+    this.windowSquares = 0;
+
+    if (windowStart < this.armedFrame) {
+      return;
+    }
+    if (this.peak >= this.threshold) {
+      this.quietStart = -1;
+      return;
+    }
+    if (this.quietStart < 0) {
+      this.quietStart = windowStart;
+    }
+    if (this.frames - this.quietStart >= this.millisToFrames(this.options.holdMillis)) {
+      this.finish(this.quietStart);
+    }
+  }
+
+  private void finish(long frame) {
+    this.finished = true;
+    this.endFrame = frame;
+  }
+
+  private long millisToFrames(int millis) {
+    return (long) (this.sampleRate * millis / 1000);
+  }
+
+  private static double toDb(double value) {
+    return value <= 0 ? Double.NEGATIVE_INFINITY : 20 * Math.log10(value);
+  }
+}
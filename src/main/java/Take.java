@@ -0,0 +1,83 @@
+import java.nio.file.Path;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * A single recorded note on its way from the capture session to disk.
+ */
+public class Take {
+  public int note;
+  public int velocity;
+  public int round;
+
+  // Where the finished take is written
+  public Path output;
+
+  // Raw frames as captured from the line
+  public AudioFormat format;
+  public byte[] data;
+  public int frames;
+
+  // Frame at which the note on was sent
+  public int noteOnFrame;
+
+  // Frame at which the note off was sent, -1 if unknown
+  public int noteOffFrame = -1;
+
+  // Measured MIDI to audio latency of the session (frames), -1 if unknown
+  public int latencyFrames = -1;
+
+  // Frame at which the sound starts, set by the onset detector
+  public int onsetFrame = -1;
+
+  // Set when no sound arrived for the note
+  public boolean silent;
+
+  // Deviation of the measured pitch from the note (cents), NaN if not measured
+  public double pitchCents = Double.NaN;
+
+  // Set by a processing stage when the take should be recorded again
+  public boolean retake;
+
+  // Why the stage asked for the retake, null if it did not say
+  public String reason;
+
+  // Set when the run records no more retakes of the note, its file is kept either way
+  public boolean lastAttempt;
+
+  // Interleaved samples in [-1, 1], filled in by the processing pipeline
+  public float[] samples;
+
+  // Written alongside the audio, processing stages may refine it
+  public SampleMetadata metadata;
+
+  // Timings and counters of the take, may be null
+  public SessionStats.TakeStats stats;
+
+  public Take(int _note, int _velocity, int _round, AudioFormat _format, byte[] _data, int _frames) {
+    this.note = _note;
+    this.velocity = _velocity;
+    this.round = _round;
+    this.format = _format;
+    this.data = _data;
+    this.frames = _frames;
+    this.metadata = new SampleMetadata(_note, _velocity);
+  }
+
+  public int channels() {
+    return this.format.getChannels();
+  }
+
+  public float sampleRate() {
+    return this.format.getSampleRate();
+  }
+
+  // Number of interleaved samples that belong to the take
+  public int length() {
+    return this.frames * this.channels();
+  }
+
+  public int millisToFrames(double millis) {
+    return (int) Math.round(this.sampleRate() * millis / 1000);
+  }
+}
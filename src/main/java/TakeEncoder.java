@@ -0,0 +1,7 @@
+/**
+ * Final stage of the processing pipeline, writes a processed take to
+ * {@link Take#output}.
+ */
+public interface TakeEncoder {
+  void write(Take take) throws Exception;
+}
@@ -0,0 +1,72 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A processing stage that runs on a finished take before it is encoded.
+ *
+ * Stages run on the processing pipeline's worker threads and may modify
+ * {@link Take#samples} and {@link Take#frames} in place.
+ */
+public interface TakeProcessor {
+  void process(Take take) throws Exception;
+
+  static List<TakeProcessor> defaults() {
+    var stages = new ArrayList<TakeProcessor>();
+    stages.add(removeDc());
+    stages.add(OnsetDetector.trimToOnset(2));
+    stages.add(fadeOut(10));
+    return stages;
+  }
+
+  // One pole high pass at ~5Hz, removes the interface's DC offset and drift
+  static TakeProcessor removeDc() {
+    return take -> {
+      var channels = take.channels();
+      var r = 1 - (2 * Math.PI * 5 / take.sampleRate());
+      for (var channel = 0; channel < channels; ++channel) {
+        var previousInput = 0.0;
+        var previousOutput = 0.0;
+        for (var i = channel; i < take.length(); i += channels) {
+          var input = take.samples[i];
+          var output = input - previousInput + r * previousOutput;
+          take.samples[i] = (float) output;
+          previousInput = input;
+          previousOutput = output;
+        }
+      }
+    };
+  }
+
+  // Raised cosine fade over the last millis (ms)
+  static TakeProcessor fadeOut(double millis) {
+    return take -> {
+      var channels = take.channels();
+      var fadeFrames = Math.min(take.frames, take.millisToFrames(millis));
+      var fadeStart = take.frames - fadeFrames;
+      for (var frame = fadeStart; frame < take.frames; ++frame) {
+        var gain = (float) (0.5 + 0.5 * Math.cos(Math.PI * (frame - fadeStart + 1) / fadeFrames));
+        for (var channel = 0; channel < channels; ++channel) {
+          take.samples[frame * channels + channel] *= gain;
+        }
+      }
+    };
+  }
+
+  // Scales the take so its peak sits at targetDb
+  static TakeProcessor normalize(double targetDb) {
+    var target = (float) Math.pow(10, targetDb / 20);
+    return take -> {
+      var peak = 0f;
+      for (var i = 0; i < take.length(); ++i) {
+        peak = Math.max(peak, Math.abs(take.samples[i]));
+      }
+      if (peak == 0) {
+        return;
+      }
+      var gain = target / peak;
+      for (var i = 0; i < take.length(); ++i) {
+        take.samples[i] *= gain;
+      }
+    };
+  }
+}
@@ -0,0 +1,21 @@
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Where takes come from: a {@link CaptureSession} records a MIDI device
+ * through an audio input in real time, a {@link SynthSource} renders them
+ * offline on a software synthesizer.
+ */
+public interface TakeSource extends AutoCloseable {
+  /**
+   * Plays a single note. The note is held for sustain (ms), after which the
+   * take runs until its release has decayed or maxLength (ms) is reached.
+   */
+  Take record(int note, int velocity, int sustain, int maxLength) throws Exception;
+
+  AudioFormat getFormat();
+
+  @Override
+  void close() throws IOException;
+}
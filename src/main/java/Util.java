@@ -1,6 +1,9 @@
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.awt.Desktop;
 import java.io.IOException;
 
@@ -20,6 +23,22 @@ public class Util {
     return seconds < 0 ? "-" + positive : positive;
   }
 
+  // Executor for long running, mostly blocking tasks. Uses virtual threads
+  // when the runtime has them and daemon platform threads otherwise
+  public static ExecutorService newTaskExecutor(String name) {
+    try {
+      var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      var count = new AtomicInteger();
+      return Executors.newCachedThreadPool(runnable -> {
+        var thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
   public static void showPath(Path path) throws IOException {
     Desktop.getDesktop().open(path.toFile());
   }
@@ -0,0 +1,228 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Memory mapped view of an existing WAV file, for tools that work on a
+ * finished library.
+ *
+ * Only the chunk layout is parsed when opening, samples are decoded on
+ * demand straight from the mapping. Files written by {@link WavWriter} can
+ * have their loop patched in place, the smpl chunk always has room for one.
+ */
+public class WavFile implements AutoCloseable {
+  private static int FORMAT_PCM = 1;
+  private static int FORMAT_FLOAT = 3;
+  private static int FORMAT_EXTENSIBLE = 0xFFFE;
+
+  // Offsets inside the smpl chunk data
+  private static int SMPL_LOOP_COUNT = 28;
+  private static int SMPL_LOOPS = 36;
+
+  private Path path;
+  private FileChannel channel;
+  private MappedByteBuffer map;
+  private AudioFormat format;
+  private long dataOffset = -1;
+  private long dataSize;
+  private long smplOffset = -1;
+  private long smplSize;
+  private long instOffset = -1;
+
+  private WavFile(Path _path, FileChannel _channel, MappedByteBuffer _map) {
+    this.path = _path;
+    this.channel = _channel;
+    this.map = _map;
+  }
+
+  public static WavFile open(Path path, boolean writable) throws IOException {
+    var channel = writable ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+        : FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(path + " is too large to map");
+      }
+      var map = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0,
+          channel.size());
+      map.order(ByteOrder.LITTLE_ENDIAN);
+      var file = new WavFile(path, channel, map);
+      file.parse();
+      return file;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private static String id(ByteBuffer buffer, int position) {
+    var id = new char[4];
+    for (var i = 0; i < 4; ++i) {
+      id[i] = (char) buffer.get(position + i);
+    }
+    return new String(id);
+  }
+
+  private void parse() throws IOException {
+    var map = this.map;
+    if (map.limit() < 12 || !id(map, 0).equals("RIFF") || !id(map, 8).equals("WAVE")) {
+      throw new IOException(this.path + " is not a WAV file");
+    }
+    var position = 12;
+    while (position + 8 <= map.limit()) {
+      var chunk = id(map, position);
+      var size = Integer.toUnsignedLong(map.getInt(position + 4));
+      var data = position + 8;
+      if (chunk.equals("fmt ")) {
+        this.format = parseFormat(data);
+      } else if (chunk.equals("data")) {
+        this.dataOffset = data;
+        this.dataSize = Math.min(size, map.limit() - data);
+      } else if (chunk.equals("smpl")) {
+        this.smplOffset = data;
+        this.smplSize = size;
+      } else if (chunk.equals("inst") && size >= 7) {
+        this.instOffset = data;
+      }
+      position = (int) Math.min(map.limit(), data + size + (size & 1));
+    }
+    if (this.format == null || this.dataOffset < 0) {
+      throw new IOException(this.path + " has no fmt or data chunk");
+    }
+  }
+
+  private AudioFormat parseFormat(int offset) throws IOException {
+    var tag = this.map.getShort(offset) & 0xFFFF;
+    var channels = this.map.getShort(offset + 2);
+    var sampleRate = this.map.getInt(offset + 4);
+    var bits = this.map.getShort(offset + 14);
+    if (tag == FORMAT_EXTENSIBLE) {
+      tag = this.map.getShort(offset + 24) & 0xFFFF;
+    }
+    if (tag == FORMAT_FLOAT && bits == 32) {
+      return new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, sampleRate, bits, channels, channels * 4, sampleRate,
+          false);
+    }
+    if (tag == FORMAT_PCM && (bits == 16 || bits == 24 || bits == 32)) {
+      return new AudioFormat(sampleRate, bits, channels, true, false);
+    }
+    throw new IOException(this.path + " uses an unsupported sample format");
+  }
+
+  public Path getPath() {
+    return this.path;
+  }
+
+  public AudioFormat getFormat() {
+    return this.format;
+  }
+
+  public int frames() {
+    return (int) (this.dataSize / this.format.getFrameSize());
+  }
+
+  // Note the sample was recorded at (from the inst chunk), -1 if unknown
+  public int getRootNote() {
+    return this.instOffset >= 0 ? this.map.get((int) this.instOffset) & 0x7F : -1;
+  }
+
+  // Velocity of the layer the sample belongs to (from the inst chunk), -1 if unknown
+  public int getVelocity() {
+    return this.instOffset >= 0 ? this.map.get((int) this.instOffset + 6) & 0x7F : -1;
+  }
+
+  // Loads the whole file into memory ahead of reads, blocks until it is there
+  public void prefetch() {
+    this.map.load();
+  }
+
+  /**
+   * Decodes frames starting at frame into samples (interleaved), bytes has
+   * to hold at least frames * frame size.
+   */
+  public void read(int frame, int frames, float[] samples, byte[] bytes) {
+    var frameSize = this.format.getFrameSize();
+    this.map.get((int) this.dataOffset + frame * frameSize, bytes, 0, frames * frameSize);
+    PcmCodec.decode(this.format, bytes, 0, samples, 0, frames * this.format.getChannels());
+  }
+
+  // Encodes samples back over frames starting at frame, the counterpart of read
+  public void write(int frame, int frames, float[] samples, byte[] bytes) throws IOException {
+    if (this.map.isReadOnly()) {
+      throw new IOException(this.path + " was not opened for writing");
+    }
+    var frameSize = this.format.getFrameSize();
+    PcmCodec.encode(this.format, samples, frames * this.format.getChannels(), bytes, 0);
+    this.map.put((int) this.dataOffset + frame * frameSize, bytes, 0, frames * frameSize);
+  }
+
+  // Makes writes to the samples durable
+  public void force() {
+    this.map.force();
+  }
+
+  /**
+   * Decodes every frame into samples (interleaved), which has to hold at
+   * least frames() * channels samples. bytes is a scratch buffer of any size
+   * that is a multiple of the frame size.
+   */
+  public void read(float[] samples, byte[] bytes) {
+    var frameSize = this.format.getFrameSize();
+    var sampleSize = frameSize / this.format.getChannels();
+    var chunk = bytes.length / frameSize * frameSize;
+    var source = this.map.duplicate();
+    source.position((int) this.dataOffset);
+    var total = (int) (this.dataSize / frameSize * frameSize);
+    var samplesRead = 0;
+    for (var done = 0; done < total; done += chunk) {
+      var count = Math.min(chunk, total - done);
+      source.get(bytes, 0, count);
+      PcmCodec.decode(this.format, bytes, 0, samples, samplesRead, count / sampleSize);
+      samplesRead += count / sampleSize;
+    }
+  }
+
+  // True if the file has a smpl chunk with room for a loop
+  public boolean canWriteLoop() {
+    return this.smplOffset >= 0 && this.smplSize >= SMPL_LOOPS + 24 && this.channel != null
+        && !this.map.isReadOnly();
+  }
+
+  /**
+   * Stores a forward loop (frames, end inclusive) in the first loop slot of
+   * the smpl chunk. Without a loop that slot is declared as sampler data,
+   * which is shrunk by the same amount so the chunk keeps its size.
+   */
+  public void writeLoop(long start, long end) throws IOException {
+    if (!this.canWriteLoop()) {
+      throw new IOException(this.path + " has no room for a loop");
+    }
+    var offset = (int) this.smplOffset;
+    var loops = this.map.getInt(offset + SMPL_LOOP_COUNT);
+    var samplerData = this.map.getInt(offset + SMPL_LOOP_COUNT + 4);
+    if (loops == 0 && samplerData >= 24) {
+      this.map.putInt(offset + SMPL_LOOP_COUNT, 1);
+      this.map.putInt(offset + SMPL_LOOP_COUNT + 4, samplerData - 24);
+    } else if (loops < 1) {
+      throw new IOException(this.path + " has no room for a loop");
+    }
+    var loop = offset + SMPL_LOOPS;
+    this.map.putInt(loop, 0);
+    this.map.putInt(loop + 4, 0);
+    this.map.putInt(loop + 8, (int) start);
+    this.map.putInt(loop + 12, (int) end);
+    this.map.putInt(loop + 16, 0);
+    this.map.putInt(loop + 20, 0);
+    this.map.force();
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.channel.close();
+  }
+}
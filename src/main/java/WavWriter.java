@@ -0,0 +1,317 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Streams interleaved float samples into a WAV file through a FileChannel.
+ *
+ * The header is written up front with placeholder sizes that are patched on
+ * close, so the length does not need to be known in advance. Files that grow
+ * past 4GB are turned into RF64 by converting the reserved JUNK chunk into a
+ * ds64 chunk. Sampler metadata is written as smpl/inst chunks after the audio.
+ *
+ * Samples are encoded into a direct buffer that is taken from a shared pool
+ * when the writer opens and returned to it on close. A writer is not thread
+ * safe, but any number of writers may be open at once.
+ */
+public class WavWriter implements AutoCloseable {
+  private static int BUFFER_SIZE = 1 << 16;
+  private static Queue<ByteBuffer> BUFFERS = new ConcurrentLinkedQueue<>();
+
+  private static long MAX_CHUNK_SIZE = 0xFFFFFFFFL;
+  private static int FORMAT_PCM = 1;
+  private static int FORMAT_FLOAT = 3;
+  private static int FORMAT_EXTENSIBLE = 0xFFFE;
+
+  // Fixed layout of the start of every file we write
+  private static int JUNK_OFFSET = 12;
+  private static int JUNK_SIZE = 28;
+
+  // smpl chunk with room for exactly one loop, see writeSmplChunk
+  static int SMPL_SIZE = 36 + 24;
+  static int INST_SIZE = 7;
+
+  private FileChannel channel;
+  private ByteBuffer buffer;
+  private SampleFormat sampleFormat;
+  private int sampleRate;
+  private int channels;
+  private long factOffset = -1;
+  private long dataSizeOffset;
+  private long samplesWritten;
+
+  // Written on close, may be changed until then
+  public SampleMetadata metadata;
+
+  public WavWriter(Path path, int _sampleRate, int _channels, SampleFormat _sampleFormat) throws IOException {
+    this.sampleRate = _sampleRate;
+    this.channels = _channels;
+    this.sampleFormat = _sampleFormat;
+    this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    this.buffer = takeBuffer();
+    try {
+      this.writeHeader();
+    } catch (IOException e) {
+      this.channel.close();
+      this.releaseBuffer();
+      throw e;
+    }
+  }
+
+  public long frames() {
+    return this.samplesWritten / this.channels;
+  }
+
+  private void writeHeader() throws IOException {
+    var header = this.buffer;
+    putId(header, "RIFF");
+    header.putInt(0);
+    putId(header, "WAVE");
+
+    // Reserved for the ds64 chunk in case the file ends up larger than 4GB
+    putId(header, "JUNK");
+    header.putInt(JUNK_SIZE);
+    for (var i = 0; i < JUNK_SIZE; ++i) {
+      header.put((byte) 0);
+    }
+
+    writeFmtChunk(header, this.channels, this.sampleRate, this.sampleFormat);
+
+    // Non-PCM formats need the frame count in a fact chunk
+    if (this.sampleFormat.isFloat) {
+      putId(header, "fact");
+      header.putInt(4);
+      this.factOffset = header.position();
+      header.putInt(0);
+    }
+
+    putId(header, "data");
+    this.dataSizeOffset = header.position();
+    header.putInt(0);
+  }
+
+  // Size of the fmt chunk writeFmtChunk writes, header included
+  static int fmtChunkSize(int channels, SampleFormat sampleFormat) {
+    return 8 + (channels > 2 ? 40 : sampleFormat.isFloat ? 18 : 16);
+  }
+
+  static void writeFmtChunk(ByteBuffer target, int channels, int sampleRate, SampleFormat sampleFormat) {
+    var extensible = channels > 2;
+    var isFloat = sampleFormat.isFloat;
+    var blockAlign = channels * sampleFormat.bytes();
+    putId(target, "fmt ");
+    target.putInt(fmtChunkSize(channels, sampleFormat) - 8);
+    target.putShort((short) (extensible ? FORMAT_EXTENSIBLE : isFloat ? FORMAT_FLOAT : FORMAT_PCM));
+    target.putShort((short) channels);
+    target.putInt(sampleRate);
+    target.putInt(sampleRate * blockAlign);
+    target.putShort((short) blockAlign);
+    target.putShort((short) sampleFormat.bits);
+    if (extensible) {
+      target.putShort((short) 22);
+      target.putShort((short) sampleFormat.bits);
+      target.putInt(0);
+      // KSDATAFORMAT_SUBTYPE_PCM / _IEEE_FLOAT
+      target.putInt(isFloat ? FORMAT_FLOAT : FORMAT_PCM);
+      target.putShort((short) 0x0000);
+      target.putShort((short) 0x0010);
+      target.put(new byte[] { (byte) 0x80, 0x00, 0x00, (byte) 0xAA, 0x00, 0x38, (byte) 0x9B, 0x71 });
+    } else if (isFloat) {
+      target.putShort((short) 0);
+    }
+  }
+
+  static void putId(ByteBuffer buffer, String id) {
+    for (var i = 0; i < 4; ++i) {
+      buffer.put((byte) id.charAt(i));
+    }
+  }
+
+  // Appends length interleaved samples in [-1, 1] starting at offset
+  public void write(float[] samples, int offset, int length) throws IOException {
+    var bytes = this.sampleFormat.bytes();
+    var position = offset;
+    var end = offset + length;
+    while (position < end) {
+      if (this.buffer.remaining() < bytes) {
+        this.flush();
+      }
+      var count = Math.min(end - position, this.buffer.remaining() / bytes);
+      this.encode(samples, position, count);
+      position += count;
+    }
+    this.samplesWritten += length;
+  }
+
+  private void encode(float[] samples, int offset, int count) {
+    var buffer = this.buffer;
+    var end = offset + count;
+    switch (this.sampleFormat) {
+      case PCM_16:
+        for (var i = offset; i < end; ++i) {
+          buffer.putShort((short) PcmCodec.quantize(samples[i], 16));
+        }
+        break;
+      case PCM_24:
+        for (var i = offset; i < end; ++i) {
+          var value = PcmCodec.quantize(samples[i], 24);
+          buffer.put((byte) value);
+          buffer.put((byte) (value >> 8));
+          buffer.put((byte) (value >> 16));
+        }
+        break;
+      case PCM_32:
+        for (var i = offset; i < end; ++i) {
+          buffer.putInt(PcmCodec.quantize(samples[i], 32));
+        }
+        break;
+      case FLOAT_32:
+        for (var i = offset; i < end; ++i) {
+          buffer.putFloat(samples[i]);
+        }
+        break;
+    }
+  }
+
+  private void flush() throws IOException {
+    this.buffer.flip();
+    while (this.buffer.hasRemaining()) {
+      this.channel.write(this.buffer);
+    }
+    this.buffer.clear();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      var dataBytes = this.samplesWritten * this.sampleFormat.bytes();
+      if (this.buffer.remaining() < 1 + 16 + SMPL_SIZE + INST_SIZE + 1) {
+        this.flush();
+      }
+      // Chunks are word aligned
+      if (dataBytes % 2 != 0) {
+        this.buffer.put((byte) 0);
+      }
+      if (this.metadata != null) {
+        writeSmplChunk(this.buffer, this.metadata, this.sampleRate);
+        writeInstChunk(this.buffer, this.metadata);
+      }
+      this.flush();
+      this.patchSizes(dataBytes);
+    } finally {
+      this.channel.close();
+      this.releaseBuffer();
+    }
+  }
+
+  private static ByteBuffer takeBuffer() {
+    var buffer = BUFFERS.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    return buffer.clear();
+  }
+
+  // Hands the buffer back to the pool, at most once per writer
+  private void releaseBuffer() {
+    if (this.buffer != null) {
+      BUFFERS.offer(this.buffer);
+      this.buffer = null;
+    }
+  }
+
+  private void patchSizes(long dataBytes) throws IOException {
+    var riffSize = this.channel.size() - 8;
+    var frames = this.frames();
+    var patch = ByteBuffer.allocate(JUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    if (riffSize <= MAX_CHUNK_SIZE && dataBytes <= MAX_CHUNK_SIZE) {
+      this.writeAt(4, patch.putInt((int) riffSize));
+      this.writeAt(this.dataSizeOffset, patch.putInt((int) dataBytes));
+      if (this.factOffset >= 0) {
+        this.writeAt(this.factOffset, patch.putInt((int) Math.min(frames, MAX_CHUNK_SIZE)));
+      }
+      return;
+    }
+
+    // RF64, the real sizes live in the ds64 chunk
+    putId(patch, "RF64");
+    this.writeAt(0, patch.putInt(-1));
+    putId(patch, "ds64");
+    this.writeAt(JUNK_OFFSET, patch.putInt(JUNK_SIZE));
+    this.writeAt(JUNK_OFFSET + 8, patch.putLong(riffSize).putLong(dataBytes).putLong(frames).putInt(0));
+    this.writeAt(this.dataSizeOffset, patch.putInt(-1));
+    if (this.factOffset >= 0) {
+      this.writeAt(this.factOffset, patch.putInt(-1));
+    }
+  }
+
+  private void writeAt(long position, ByteBuffer patch) throws IOException {
+    patch.flip();
+    while (patch.hasRemaining()) {
+      position += this.channel.write(patch, position);
+    }
+    patch.clear();
+  }
+
+  /**
+   * Writes a smpl chunk with space for a single loop. Without a loop the slot
+   * is declared as sampler specific data, so the chunk always has the same
+   * size and a loop can be patched in later without moving any other data.
+   */
+  static void writeSmplChunk(ByteBuffer target, SampleMetadata metadata, int sampleRate) {
+    // The pitch fraction can only raise the unity note, negative corrections
+    // are expressed relative to the note below
+    var unityNote = metadata.rootNote;
+    var cents = metadata.fineTuneCents;
+    if (cents < 0) {
+      unityNote -= 1;
+      cents += 100;
+    }
+    var fraction = (int) Math.round(cents / 100.0 * 4294967296.0);
+
+    putId(target, "smpl");
+    target.putInt(SMPL_SIZE);
+    target.putInt(0);
+    target.putInt(0);
+    target.putInt((int) Math.round(1e9 / sampleRate));
+    target.putInt(unityNote);
+    target.putInt(fraction);
+    target.putInt(0);
+    target.putInt(0);
+    if (metadata.hasLoop()) {
+      target.putInt(1);
+      target.putInt(0);
+      target.putInt(0);
+      target.putInt(0);
+      target.putInt((int) metadata.loopStart);
+      target.putInt((int) metadata.loopEnd);
+      target.putInt(0);
+      target.putInt(0);
+    } else {
+      target.putInt(0);
+      target.putInt(24);
+      for (var i = 0; i < 24; ++i) {
+        target.put((byte) 0);
+      }
+    }
+  }
+
+  static void writeInstChunk(ByteBuffer target, SampleMetadata metadata) {
+    putId(target, "inst");
+    target.putInt(INST_SIZE);
+    target.put((byte) metadata.rootNote);
+    target.put((byte) metadata.fineTuneCents);
+    target.put((byte) metadata.gainDb);
+    target.put((byte) metadata.lowNote);
+    target.put((byte) metadata.highNote);
+    target.put((byte) metadata.lowVelocity);
+    target.put((byte) metadata.highVelocity);
+    target.put((byte) 0);
+  }
+}
@@ -0,0 +1,18 @@
+/**
+ * Writes takes as WAV files with their sampler metadata.
+ */
+public class WaveEncoder implements TakeEncoder {
+  private SampleFormat sampleFormat;
+
+  public WaveEncoder(SampleFormat _sampleFormat) {
+    this.sampleFormat = _sampleFormat;
+  }
+
+  @Override
+  public void write(Take take) throws Exception {
+    try (var writer = new WavWriter(take.output, (int) take.sampleRate(), take.channels(), this.sampleFormat)) {
+      writer.metadata = take.metadata;
+      writer.write(take.samples, 0, take.length());
+    }
+  }
+}